@@ -0,0 +1,229 @@
+package dev.kappa.agrep_again;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton for a space-separated OR query.
+ *
+ * <p>Finds the same matches as the alternation {@link Search#convertOrPattern} builds, in
+ * one pass over the text however many terms the query has: the leftmost start wins, and
+ * at that start the first term in query order that matches decides the end.</p>
+ */
+public final class AhoCorasickMatcher implements LiteralSearch {
+    private final char[][] terms;
+    private final boolean ignoreCase;
+    private final int maxLength;
+
+    // Goto function as an open-addressing table keyed by (state << 16 | char)
+    private final long[] transitionKeys;
+    private final int[] transitionTargets;
+    private final int transitionMask;
+
+    private final int[] failure;
+    /** Length of the longest term ending in each state, 0 if none does. */
+    private final int[] matchLength;
+
+    private AhoCorasickMatcher(char[][] terms, boolean ignoreCase) {
+        this.terms = terms;
+        this.ignoreCase = ignoreCase;
+
+        // Build the trie
+        Map<Long, Integer> trie = new HashMap<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        depths.add(0);
+        terminal.add(false);
+        int longest = 0;
+        for (char[] term : terms) {
+            int state = 0;
+            for (char c : term) {
+                Long key = key(state, c);
+                Integer next = trie.get(key);
+                if (next == null) {
+                    next = depths.size();
+                    trie.put(key, next);
+                    depths.add(depths.get(state) + 1);
+                    terminal.add(false);
+                }
+                state = next;
+            }
+            terminal.set(state, true);
+            longest = Math.max(longest, term.length);
+        }
+        maxLength = longest;
+
+        int capacity = Integer.highestOneBit(Math.max(trie.size(), 1) * 2 + 1) << 1;
+        transitionKeys = new long[capacity];
+        transitionTargets = new int[capacity];
+        transitionMask = capacity - 1;
+        Arrays.fill(transitionKeys, -1L);
+        List<List<long[]>> children = new ArrayList<>(depths.size());
+        for (int i = 0; i < depths.size(); i++) {
+            children.add(new ArrayList<>());
+        }
+        for (Map.Entry<Long, Integer> e : trie.entrySet()) {
+            long key = e.getKey();
+            int slot = slot(key);
+            while (transitionKeys[slot] != -1L) {
+                slot = (slot + 1) & transitionMask;
+            }
+            transitionKeys[slot] = key;
+            transitionTargets[slot] = e.getValue();
+            children.get((int) (key >>> 16)).add(new long[] { key & 0xFFFF, e.getValue() });
+        }
+
+        // Failure links and match lengths, breadth first
+        int states = depths.size();
+        failure = new int[states];
+        matchLength = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (long[] child : children.get(0)) {
+            queue[tail++] = (int) child[1];
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            matchLength[state] = terminal.get(state) ? depths.get(state) : matchLength[failure[state]];
+            for (long[] child : children.get(state)) {
+                char c = (char) child[0];
+                int target = (int) child[1];
+                int f = failure[state];
+                int next;
+                while ((next = transition(f, c)) < 0 && f != 0) {
+                    f = failure[f];
+                }
+                failure[target] = next < 0 ? 0 : next;
+                queue[tail++] = target;
+            }
+        }
+    }
+
+    /**
+     * @return A matcher for the space-separated terms of {@code query}, or null if the
+     *         query has to be left to the regex engine
+     */
+    public static AhoCorasickMatcher compile(String query, boolean ignoreCase) {
+        return compile(query.split(" ", -1), ignoreCase);
+    }
+
+    /**
+     * @return A matcher for any of {@code words} in order of preference, or null if they
+     *         have to be left to the regex engine
+     */
+    public static AhoCorasickMatcher compile(String[] words, boolean ignoreCase) {
+        char[][] terms = new char[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            // An empty alternative matches everywhere
+            if (words[i].isEmpty()) {
+                return null;
+            }
+            char[] term = words[i].toCharArray();
+            if (ignoreCase) {
+                for (int j = 0; j < term.length; j++) {
+                    if (Character.isSurrogate(term[j])) {
+                        return null;
+                    }
+                    term[j] = LiteralMatcher.fold(term[j]);
+                }
+            }
+            terms[i] = term;
+        }
+        return new AhoCorasickMatcher(terms, ignoreCase);
+    }
+
+    @Override
+    public boolean contains(CharSequence text) {
+        int state = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            state = step(state, charAt(text, i));
+            if (matchLength[state] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int indexOf(CharSequence text, int from) {
+        int state = 0;
+        int best = -1;
+        int length = text.length();
+        for (int i = Math.max(from, 0); i < length; i++) {
+            state = step(state, charAt(text, i));
+            int matched = matchLength[state];
+            if (matched > 0) {
+                int start = i - matched + 1;
+                if (best < 0 || start < best) {
+                    best = start;
+                }
+            }
+            // A match ending later cannot start before best any more
+            if (best >= 0 && i + 2 - maxLength >= best) {
+                return best;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public int matchEnd(CharSequence text, int start) {
+        for (char[] term : terms) {
+            if (regionMatches(text, start, term)) {
+                return start + term.length;
+            }
+        }
+        return start;
+    }
+
+    private boolean regionMatches(CharSequence text, int start, char[] term) {
+        if (start + term.length > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < term.length; i++) {
+            if (charAt(text, start + i) != term[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int step(int state, char c) {
+        int next;
+        while ((next = transition(state, c)) < 0 && state != 0) {
+            state = failure[state];
+        }
+        return next < 0 ? 0 : next;
+    }
+
+    private int transition(int state, char c) {
+        long key = key(state, c);
+        int slot = slot(key);
+        long k;
+        while ((k = transitionKeys[slot]) != -1L) {
+            if (k == key) {
+                return transitionTargets[slot];
+            }
+            slot = (slot + 1) & transitionMask;
+        }
+        return -1;
+    }
+
+    private char charAt(CharSequence text, int index) {
+        char c = text.charAt(index);
+        return ignoreCase ? LiteralMatcher.fold(c) : c;
+    }
+
+    private static long key(int state, char c) {
+        return ((long) state << 16) | c;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & transitionMask;
+    }
+}
@@ -0,0 +1,63 @@
+package dev.kappa.agrep_again;
+
+import java.util.Locale;
+
+/**
+ * Tells binary documents such as images and databases from text, looking only at the
+ * sample already read for charset detection.
+ *
+ * <p>Like GNU grep, a NUL byte marks a document as binary. A sample that is mostly control
+ * characters is binary too, so files without NULs are caught as well. Tabs, line and form
+ * feeds and escapes, such as terminal color codes in logs, count as text.</p>
+ */
+final class BinarySniffer {
+    /** Share of control characters, in percent, above which a sample is binary. */
+    private static final int MAX_CONTROL_PERCENT = 10;
+
+    private BinarySniffer() {
+    }
+
+    /**
+     * @param charset The detected charset, or null for the default
+     * @return true if the sample looks like a binary document
+     */
+    static boolean isBinary(byte[] sample, int length, String charset) {
+        if (length <= 0 || isWideCharset(charset) || hasWideBom(sample, length)) {
+            // NULs are part of every ASCII character in UTF-16 and UTF-32
+            return false;
+        }
+        int control = 0;
+        for (int i = 0; i < length; i++) {
+            int b = sample[i] & 0xff;
+            if (b == 0) {
+                return true;
+            }
+            if (b < 0x20 && !isTextControl(b) || b == 0x7f) {
+                control++;
+            }
+        }
+        return control * 100 > length * MAX_CONTROL_PERCENT;
+    }
+
+    private static boolean isTextControl(int b) {
+        return b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == '\b' || b == 0x1b;
+    }
+
+    private static boolean isWideCharset(String charset) {
+        if (charset == null) {
+            return false;
+        }
+        String name = charset.toUpperCase(Locale.ROOT);
+        return name.startsWith("UTF-16") || name.startsWith("UTF-32");
+    }
+
+    private static boolean hasWideBom(byte[] sample, int length) {
+        if (length < 2) {
+            return false;
+        }
+        int b0 = sample[0] & 0xff;
+        int b1 = sample[1] & 0xff;
+        return b0 == 0xfe && b1 == 0xff || b0 == 0xff && b1 == 0xfe
+            || length >= 4 && b0 == 0 && b1 == 0 && (sample[2] & 0xff) == 0xfe && (sample[3] & 0xff) == 0xff;
+    }
+}
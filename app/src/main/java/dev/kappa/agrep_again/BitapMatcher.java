@@ -0,0 +1,178 @@
+package dev.kappa.agrep_again;
+
+import java.util.Arrays;
+
+/**
+ * Approximate search with the bit-parallel algorithm of Wu and Manber.
+ *
+ * <p>A line matches if some substring of it is within {@code maxErrors} insertions,
+ * deletions or substitutions of one of the space-separated query terms. Each term is
+ * limited to 64 characters, one bit per character of a {@code long}, and every text
+ * character costs {@code maxErrors + 1} word operations.</p>
+ */
+public final class BitapMatcher {
+    /** Longest term a {@code long} state can hold. */
+    public static final int MAX_TERM_LENGTH = 64;
+    private static final int DIRECT_MASKS = 256;
+
+    /**
+     * Character masks and state layout of one query term.
+     */
+    private static final class Term {
+        final long[] directMasks = new long[DIRECT_MASKS];
+        /** Sorted characters outside the direct table, with their masks. */
+        final char[] otherChars;
+        final long[] otherMasks;
+        final long accept;
+        final int maxErrors;
+
+        Term(char[] term, int maxErrors) {
+            char[] others = new char[term.length];
+            int otherCount = 0;
+            for (char c : term) {
+                if (c >= DIRECT_MASKS && Arrays.binarySearch(others, 0, otherCount, c) < 0) {
+                    int at = -Arrays.binarySearch(others, 0, otherCount, c) - 1;
+                    System.arraycopy(others, at, others, at + 1, otherCount - at);
+                    others[at] = c;
+                    otherCount++;
+                }
+            }
+            otherChars = Arrays.copyOf(others, otherCount);
+            otherMasks = new long[otherCount];
+            for (int i = 0; i < term.length; i++) {
+                char c = term[i];
+                if (c < DIRECT_MASKS) {
+                    directMasks[c] |= 1L << i;
+                } else {
+                    otherMasks[Arrays.binarySearch(otherChars, c)] |= 1L << i;
+                }
+            }
+            accept = 1L << (term.length - 1);
+            // With as many errors as characters every position would match
+            this.maxErrors = Math.min(maxErrors, term.length - 1);
+        }
+
+        long mask(char c) {
+            if (c < DIRECT_MASKS) {
+                return directMasks[c];
+            }
+            int at = Arrays.binarySearch(otherChars, c);
+            return at >= 0 ? otherMasks[at] : 0L;
+        }
+    }
+
+    private final Term[] terms;
+    private final boolean ignoreCase;
+    private final int maxErrors;
+
+    private BitapMatcher(Term[] terms, boolean ignoreCase, int maxErrors) {
+        this.terms = terms;
+        this.ignoreCase = ignoreCase;
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * @return A matcher allowing up to {@code maxErrors} errors per match, or null if a
+     *         term is longer than {@link #MAX_TERM_LENGTH} or the query has no terms
+     */
+    public static BitapMatcher compile(String query, int maxErrors, boolean ignoreCase) {
+        String[] words = query.split(" ");
+        Term[] terms = new Term[words.length];
+        int count = 0;
+        for (String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (word.length() > MAX_TERM_LENGTH) {
+                return null;
+            }
+            char[] term = word.toCharArray();
+            if (ignoreCase) {
+                for (int i = 0; i < term.length; i++) {
+                    term[i] = LiteralMatcher.fold(term[i]);
+                }
+            }
+            terms[count++] = new Term(term, maxErrors);
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new BitapMatcher(Arrays.copyOf(terms, count), ignoreCase, Math.max(maxErrors, 0));
+    }
+
+    /**
+     * @return Scratch state for {@link #minErrors(CharSequence, long[])}, one per thread
+     */
+    public long[] newState() {
+        return new long[maxErrors + 1];
+    }
+
+    /**
+     * @return Fewest errors of any match in {@code text}, or -1 if there is no match
+     */
+    public int minErrors(CharSequence text) {
+        return minErrors(text, newState());
+    }
+
+    /**
+     * @param state Scratch state from {@link #newState()}
+     * @return Fewest errors of any match in {@code text}, or -1 if there is no match
+     */
+    public int minErrors(CharSequence text, long[] state) {
+        int best = -1;
+        for (Term term : terms) {
+            int limit = best < 0 ? term.maxErrors : Math.min(term.maxErrors, best - 1);
+            int errors = scan(term, text, state, limit);
+            if (errors >= 0) {
+                best = errors;
+                if (best == 0) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    private int scan(Term term, CharSequence text, long[] r, int limit) {
+        if (limit < 0) {
+            return -1;
+        }
+        // Row d holds the term prefixes that end here with at most d errors
+        for (int d = 0; d <= limit; d++) {
+            r[d] = (1L << d) - 1;
+        }
+        long accept = term.accept;
+        int best = -1;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            long mask = term.mask(ignoreCase ? LiteralMatcher.fold(c) : c);
+            long previousOld = r[0];
+            long previousNew = ((previousOld << 1) | 1L) & mask;
+            r[0] = previousNew;
+            int found = (previousNew & accept) != 0 ? 0 : -1;
+            for (int d = 1; d <= limit; d++) {
+                long old = r[d];
+                long next = (((old << 1) | 1L) & mask)   // match
+                        | ((previousOld << 1) | 1L)       // substitution
+                        | previousOld                     // insertion
+                        | ((previousNew << 1) | 1L);      // deletion
+                r[d] = next;
+                previousOld = old;
+                previousNew = next;
+                if (found < 0 && (next & accept) != 0) {
+                    found = d;
+                }
+            }
+            if (found >= 0) {
+                if (found == 0) {
+                    return 0;
+                }
+                best = found;
+                // Only fewer errors can improve on this
+                limit = found - 1;
+            }
+        }
+        return best;
+    }
+}
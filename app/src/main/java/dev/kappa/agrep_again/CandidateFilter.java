@@ -0,0 +1,77 @@
+package dev.kappa.agrep_again;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Prunes candidate documents by the MIME type and size their provider reports while
+ * listing a directory, so documents that cannot be searched are never opened.
+ */
+final class CandidateFilter {
+    /** Families of types that are never text. */
+    private static final String[] BINARY_PREFIXES = {
+        "image/", "audio/", "video/", "font/", "application/font-", "application/x-font-"};
+    /** Exceptions to {@link #BINARY_PREFIXES}: TypeScript is reported as an MPEG transport stream. */
+    private static final Set<String> TEXT_TYPES = new HashSet<>(Arrays.asList(
+        "video/mp2t"));
+    /** Archives, documents and other application types that are never text. */
+    private static final Set<String> BINARY_TYPES = new HashSet<>(Arrays.asList(
+        "application/pdf",
+        "application/zip",
+        "application/gzip",
+        "application/x-gzip",
+        "application/x-tar",
+        "application/x-bzip",
+        "application/x-bzip2",
+        "application/x-xz",
+        "application/x-lzma",
+        "application/zstd",
+        "application/x-7z-compressed",
+        "application/x-rar-compressed",
+        "application/vnd.rar",
+        "application/java-archive",
+        "application/vnd.android.package-archive",
+        "application/x-iso9660-image",
+        "application/vnd.ms-fontobject",
+        "application/wasm"));
+
+    private CandidateFilter() {
+    }
+
+    /**
+     * @return true if {@code entry} passes the MIME type and size rules of {@code prefs}
+     */
+    static boolean accepts(DocumentEntry entry, Prefs prefs) {
+        if (prefs.mMaxFileSizeMb > 0 && entry.size > (long) prefs.mMaxFileSizeMb * 1024 * 1024) {
+            return false;
+        }
+        return !prefs.mTextFilesOnly || mayBeText(entry.mimeType);
+    }
+
+    /**
+     * @return false only for types known not to be text, such as images, media, fonts and
+     *         archives; documents of unknown type may still be text
+     */
+    static boolean mayBeText(String mimeType) {
+        if (mimeType == null || mimeType.isEmpty()) {
+            return true;
+        }
+        String type = mimeType.toLowerCase(Locale.ROOT);
+        int params = type.indexOf(';');
+        if (params >= 0) {
+            type = type.substring(0, params).trim();
+        }
+        if (type.endsWith("+xml") || type.endsWith("+json") || TEXT_TYPES.contains(type)) {
+            // Such as image/svg+xml
+            return true;
+        }
+        for (String prefix : BINARY_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return !BINARY_TYPES.contains(type);
+    }
+}
@@ -0,0 +1,59 @@
+package dev.kappa.agrep_again;
+
+/**
+ * A reusable {@link CharSequence} view of part of a {@code char[]}, so text can be matched
+ * without copying it into a String first. The view follows later changes to the array.
+ */
+final class CharSlice implements CharSequence {
+    private char[] array;
+    private int offset;
+    private int length;
+
+    CharSlice() {
+        this(new char[0], 0, 0);
+    }
+
+    CharSlice(char[] array, int start, int end) {
+        set(array, start, end);
+    }
+
+    /**
+     * Point this view at {@code array[start, end)}.
+     * @return This view
+     */
+    CharSlice set(char[] array, int start, int end) {
+        this.array = array;
+        this.offset = start;
+        this.length = end - start;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return array[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        return new CharSlice(array, offset + start, offset + end);
+    }
+
+    /**
+     * @return A copy of the viewed text
+     */
+    @Override
+    public String toString() {
+        return new String(array, offset, length);
+    }
+}
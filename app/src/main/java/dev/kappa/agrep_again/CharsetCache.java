@@ -0,0 +1,228 @@
+package dev.kappa.agrep_again;
+
+import android.content.Context;
+
+import org.mozilla.universalchardet.UniversalDetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Detected charsets of documents, persisted across searches and shared by the search engine
+ * and the text viewer.
+ *
+ * <p>An entry is keyed by document URI and only reused while the document's size and
+ * last-modified time are unchanged. Samples that are valid UTF-8 or pure ASCII are taken as
+ * UTF-8 without running {@link UniversalDetector}.</p>
+ */
+public final class CharsetCache {
+    private static final int MAGIC = 0x41474353; // "AGCS"
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "charsets";
+    /** Entries kept; the least recently used are dropped first. */
+    private static final int MAX_ENTRIES = 20000;
+    /** Stored for documents the detector could not decide on, which use the default charset */
+    private static final String DEFAULT = "";
+    private static final String UTF_8 = "UTF-8";
+
+    private static CharsetCache sInstance;
+
+    private static final class Detected {
+        final long size;
+        final long lastModified;
+        final String charset;
+
+        Detected(long size, long lastModified, String charset) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.charset = charset;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Detected> entries = new LinkedHashMap<String, Detected>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Detected> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean dirty;
+
+    private CharsetCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The cache of this app, loaded on first use
+     */
+    public static synchronized CharsetCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = load(new File(context.getCacheDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Load the cache stored in {@code file}, or start an empty one if there is none.
+     */
+    static CharsetCache load(File file) {
+        CharsetCache cache = new CharsetCache(file);
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 65536))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String uri = in.readUTF();
+                        long size = in.readLong();
+                        long modified = in.readLong();
+                        String charset = in.readUTF();
+                        cache.entries.put(uri, new Detected(size, modified, charset));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                cache.entries.clear();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Find the charset of a document, detecting it from {@code sample} unless it is cached.
+     * Documents without a known size and timestamp are detected every time.
+     * @return The charset name, or null for the platform default
+     */
+    public String detect(String uri, long size, long lastModified, byte[] sample, int length) {
+        boolean cacheable = size >= 0 && lastModified > 0;
+        if (cacheable) {
+            synchronized (this) {
+                Detected entry = entries.get(uri);
+                if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                    return DEFAULT.equals(entry.charset) ? null : entry.charset;
+                }
+            }
+        }
+        String charset = detect(sample, length);
+        if (cacheable) {
+            synchronized (this) {
+                entries.put(uri, new Detected(size, lastModified, charset != null ? charset : DEFAULT));
+                dirty = true;
+            }
+        }
+        return charset;
+    }
+
+    /**
+     * Detect the charset of a sample without the cache.
+     * @return The charset name, or null for the platform default
+     */
+    static String detect(byte[] sample, int length) {
+        if (isPlainUtf8(sample, length)) {
+            return UTF_8;
+        }
+        UniversalDetector detector = new UniversalDetector(null);
+        if (length > 0) {
+            detector.handleData(sample, 0, length);
+        }
+        detector.dataEnd();
+        return detector.getDetectedCharset();
+    }
+
+    /**
+     * @return true if the sample is valid UTF-8, allowing a sequence cut off at its end, and
+     *         has none of the escapes of the 7-bit encodings ISO-2022 and HZ
+     */
+    static boolean isPlainUtf8(byte[] data, int length) {
+        int i = 0;
+        while (i < length) {
+            int b = data[i];
+            if (b >= 0) {
+                if (b == 0x1b || (b == '~' && i + 1 < length && data[i + 1] == '{')) {
+                    return false;
+                }
+                i++;
+                continue;
+            }
+            b &= 0xff;
+            int need;
+            int low = 0x80;
+            int high = 0xbf;
+            if (b >= 0xc2 && b <= 0xdf) {
+                need = 1;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                need = 2;
+                if (b == 0xe0) {
+                    low = 0xa0;
+                } else if (b == 0xed) {
+                    high = 0x9f;
+                }
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                need = 3;
+                if (b == 0xf0) {
+                    low = 0x90;
+                } else if (b == 0xf4) {
+                    high = 0x8f;
+                }
+            } else {
+                return false;
+            }
+            for (int k = 1; k <= need; k++) {
+                if (i + k >= length) {
+                    // The sample ends inside this character
+                    return true;
+                }
+                int c = data[i + k] & 0xff;
+                if (k == 1 ? c < low || c > high : (c & 0xc0) != 0x80) {
+                    return false;
+                }
+            }
+            i += need + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Write the cache if it changed since it was loaded or last saved, replacing the file
+     * atomically.
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Detected> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().lastModified);
+                out.writeUTF(e.getValue().charset);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        if (tmp.renameTo(file)) {
+            dirty = false;
+        } else {
+            tmp.delete();
+        }
+    }
+}
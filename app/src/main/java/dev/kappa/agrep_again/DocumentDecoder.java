@@ -0,0 +1,509 @@
+package dev.kappa.agrep_again;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes one document after another into chars, replacing the stack of buffered stream,
+ * stream reader and buffered reader. Bytes are read into a single reusable buffer, or taken
+ * straight from a prefetched array or a mapped document, and decoded by a
+ * {@link CharsetDecoder} kept per charset.
+ * Pure ASCII and valid UTF-8 are decoded by hand; anything else, including malformed input,
+ * goes to the decoder, which replaces it like {@link java.io.InputStreamReader} does. Once the
+ * decoder has seen part of a document it decodes the rest, as it may hold a partial sequence.
+ * <p>
+ * Not thread safe; each match worker keeps its own.
+ */
+final class DocumentDecoder extends Reader {
+    private static final int MODE_DECODER = 0;
+    private static final int MODE_ASCII = 1;
+    private static final int MODE_UTF8 = 2;
+    private static final int MODE_LATIN1 = 3;
+
+    private static final class CharsetState {
+        final CharsetDecoder decoder;
+        final int mode;
+
+        CharsetState(Charset charset) {
+            decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            if (charset.equals(StandardCharsets.UTF_8)) {
+                mode = MODE_UTF8;
+            } else if (charset.equals(StandardCharsets.ISO_8859_1)) {
+                mode = MODE_LATIN1;
+            } else if (EncodedLiteral.isStatelessAsciiCompatible(charset) && decodesAscii(decoder)) {
+                mode = MODE_ASCII;
+            } else {
+                mode = MODE_DECODER;
+            }
+        }
+
+        private static boolean decodesAscii(CharsetDecoder decoder) {
+            byte[] ascii = new byte[128];
+            for (int i = 0; i < ascii.length; i++) {
+                ascii[i] = (byte) i;
+            }
+            try {
+                CharBuffer chars = decoder.decode(ByteBuffer.wrap(ascii));
+                if (chars.remaining() != ascii.length) {
+                    return false;
+                }
+                for (int i = 0; i < ascii.length; i++) {
+                    if (chars.get(i) != i) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                decoder.reset();
+            }
+        }
+    }
+
+    private final Map<String, CharsetState> charsets = new HashMap<>();
+    private final int bufferSize;
+    private ByteBuffer buffer;
+    private ByteBuffer in;
+    private InputStream stream;
+    private boolean eof;
+    private boolean ending;
+    private boolean flushed;
+    private boolean decoding;
+    private CharsetState state;
+    private CharBuffer out = CharBuffer.allocate(0);
+    private final char[] pair = new char[2];
+    private boolean pending;
+
+    DocumentDecoder(int bufferSize) {
+        this.bufferSize = bufferSize;
+        buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Give up a buffer grown for a long head, once the document is done.
+     */
+    void trim() {
+        if (buffer.capacity() > 4 * bufferSize) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+    }
+
+    /**
+     * Start decoding a document: the first {@code length} bytes of {@code head}, followed by
+     * the rest of {@code stream} if it is not null. A null charset name means the platform
+     * default.
+     * @throws UnsupportedEncodingException if the charset is not supported
+     */
+    void reset(String charsetName, byte[] head, int length, InputStream stream)
+            throws UnsupportedEncodingException {
+        start(charsetName, stream);
+        if (stream == null) {
+            // The whole document is already in memory
+            in = ByteBuffer.wrap(head, 0, length);
+        } else {
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+            buffer.clear();
+            buffer.put(head, 0, length);
+            buffer.flip();
+            in = buffer;
+        }
+    }
+
+    /**
+     * Start decoding a document held whole in {@code document}, from its position to its
+     * limit. A mapped document is decoded in place, without a copy on the heap.
+     * @throws UnsupportedEncodingException if the charset is not supported
+     */
+    void reset(String charsetName, ByteBuffer document) throws UnsupportedEncodingException {
+        start(charsetName, null);
+        in = document.duplicate();
+    }
+
+    private void start(String charsetName, InputStream stream) throws UnsupportedEncodingException {
+        state = charsetState(charsetName);
+        state.decoder.reset();
+        this.stream = stream;
+        eof = stream == null;
+        ending = false;
+        flushed = false;
+        decoding = false;
+        pending = false;
+    }
+
+    private CharsetState charsetState(String charsetName) throws UnsupportedEncodingException {
+        String key = charsetName != null ? charsetName : "";
+        CharsetState cs = charsets.get(key);
+        if (cs == null) {
+            Charset charset;
+            try {
+                charset = charsetName != null ? Charset.forName(charsetName) : Charset.defaultCharset();
+            } catch (IllegalArgumentException e) {
+                throw new UnsupportedEncodingException(charsetName);
+            }
+            cs = new CharsetState(charset);
+            charsets.put(key, cs);
+        }
+        return cs;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pending) {
+            cbuf[off] = pair[1];
+            pending = false;
+            return 1;
+        }
+        if (len == 1) {
+            // A surrogate pair cannot be split by the decoder; keep its low half
+            int n = read(pair, 0, 2);
+            if (n < 0) {
+                return -1;
+            }
+            cbuf[off] = pair[0];
+            pending = n == 2;
+            return 1;
+        }
+        if (out.array() != cbuf) {
+            out = CharBuffer.wrap(cbuf);
+        }
+        out.limit(off + len).position(off);
+        while (true) {
+            if (!ending) {
+                decode();
+            }
+            int n = out.position() - off;
+            if (n > 0) {
+                return n;
+            }
+            if (eof) {
+                if (flushed) {
+                    return -1;
+                }
+                // Replace a truncated sequence at the end of the document
+                ending = true;
+                CoderResult result = state.decoder.decode(in, out, true);
+                if (result.isOverflow()) {
+                    return out.position() - off;
+                }
+                state.decoder.flush(out);
+                flushed = true;
+                n = out.position() - off;
+                return n > 0 ? n : -1;
+            }
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        in.compact();
+        int n = stream.read(in.array(), in.position(), in.remaining());
+        if (n < 0) {
+            eof = true;
+        } else {
+            in.position(in.position() + n);
+        }
+        in.flip();
+    }
+
+    /**
+     * Decode as much of the buffered input as fits, leaving an incomplete sequence at the
+     * end for the next fill.
+     */
+    private void decode() {
+        if (decoding) {
+            decodeWithDecoder();
+            return;
+        }
+        // A mapped document has no array, and is read in place
+        boolean array = in.hasArray();
+        switch (state.mode) {
+            case MODE_LATIN1:
+                if (array) {
+                    decodeLatin1();
+                } else {
+                    decodeLatin1Buffer();
+                }
+                return;
+            case MODE_UTF8:
+                if (!(array ? decodeUtf8() : decodeUtf8Buffer())) {
+                    decodeWithDecoder();
+                }
+                return;
+            case MODE_ASCII:
+                if (!(array ? decodeAscii() : decodeAsciiBuffer())) {
+                    decodeWithDecoder();
+                }
+                return;
+            default:
+                decodeWithDecoder();
+        }
+    }
+
+    private void decodeWithDecoder() {
+        decoding = true;
+        if (in.hasRemaining() && out.hasRemaining()) {
+            state.decoder.decode(in, out, false);
+        }
+    }
+
+    private void decodeLatin1() {
+        byte[] src = in.array();
+        char[] dst = out.array();
+        int sp = in.arrayOffset() + in.position();
+        int dp = out.arrayOffset() + out.position();
+        int n = Math.min(in.remaining(), out.remaining());
+        for (int i = 0; i < n; i++) {
+            dst[dp + i] = (char) (src[sp + i] & 0xff);
+        }
+        in.position(in.position() + n);
+        out.position(out.position() + n);
+    }
+
+    /**
+     * @return true if the input ran out or the output is full, false at a non-ASCII byte
+     */
+    private boolean decodeAscii() {
+        byte[] src = in.array();
+        char[] dst = out.array();
+        int base = in.arrayOffset();
+        int sp = base + in.position();
+        int sl = base + in.limit();
+        int dp = out.arrayOffset() + out.position();
+        int dl = out.arrayOffset() + out.limit();
+        boolean ascii = true;
+        while (sp < sl && dp < dl) {
+            byte b = src[sp];
+            if (b < 0) {
+                ascii = false;
+                break;
+            }
+            dst[dp++] = (char) b;
+            sp++;
+        }
+        in.position(sp - base);
+        out.position(dp - out.arrayOffset());
+        return ascii;
+    }
+
+    /**
+     * @return true if the input ran out, ended in an incomplete sequence or the output is
+     *         full; false at a malformed sequence
+     */
+    private boolean decodeUtf8() {
+        byte[] src = in.array();
+        char[] dst = out.array();
+        int base = in.arrayOffset();
+        int sp = base + in.position();
+        int sl = base + in.limit();
+        int dp = out.arrayOffset() + out.position();
+        int dl = out.arrayOffset() + out.limit();
+        boolean valid = true;
+        while (sp < sl && dp < dl) {
+            int b1 = src[sp];
+            if (b1 >= 0) {
+                dst[dp++] = (char) b1;
+                sp++;
+                continue;
+            }
+            b1 &= 0xff;
+            if (b1 >= 0xc2 && b1 <= 0xdf) {
+                if (sl - sp < 2) {
+                    break;
+                }
+                int b2 = src[sp + 1];
+                if ((b2 & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                dst[dp++] = (char) (((b1 & 0x1f) << 6) | (b2 & 0x3f));
+                sp += 2;
+            } else if (b1 >= 0xe0 && b1 <= 0xef) {
+                if (sl - sp < 3) {
+                    break;
+                }
+                int b2 = src[sp + 1] & 0xff;
+                int b3 = src[sp + 2];
+                // Reject overlong forms and surrogates
+                int low = b1 == 0xe0 ? 0xa0 : 0x80;
+                int high = b1 == 0xed ? 0x9f : 0xbf;
+                if (b2 < low || b2 > high || (b3 & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                dst[dp++] = (char) (((b1 & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f));
+                sp += 3;
+            } else if (b1 >= 0xf0 && b1 <= 0xf4) {
+                if (dl - dp < 2) {
+                    break;
+                }
+                if (sl - sp < 4) {
+                    break;
+                }
+                int b2 = src[sp + 1] & 0xff;
+                int b3 = src[sp + 2];
+                int b4 = src[sp + 3];
+                int low = b1 == 0xf0 ? 0x90 : 0x80;
+                int high = b1 == 0xf4 ? 0x8f : 0xbf;
+                if (b2 < low || b2 > high || (b3 & 0xc0) != 0x80 || (b4 & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                int cp = ((b1 & 0x07) << 18) | ((b2 & 0x3f) << 12) | ((b3 & 0x3f) << 6) | (b4 & 0x3f);
+                dst[dp++] = Character.highSurrogate(cp);
+                dst[dp++] = Character.lowSurrogate(cp);
+                sp += 4;
+            } else {
+                valid = false;
+                break;
+            }
+        }
+        in.position(sp - base);
+        out.position(dp - out.arrayOffset());
+        return valid;
+    }
+
+    /**
+     * {@link #decodeLatin1()} for input without an array.
+     */
+    private void decodeLatin1Buffer() {
+        ByteBuffer src = in;
+        char[] dst = out.array();
+        int sp = src.position();
+        int dp = out.arrayOffset() + out.position();
+        int n = Math.min(src.remaining(), out.remaining());
+        for (int i = 0; i < n; i++) {
+            dst[dp + i] = (char) (src.get(sp + i) & 0xff);
+        }
+        src.position(sp + n);
+        out.position(out.position() + n);
+    }
+
+    /**
+     * {@link #decodeAscii()} for input without an array.
+     */
+    private boolean decodeAsciiBuffer() {
+        ByteBuffer src = in;
+        char[] dst = out.array();
+        int sp = src.position();
+        int sl = src.limit();
+        int dp = out.arrayOffset() + out.position();
+        int dl = out.arrayOffset() + out.limit();
+        boolean ascii = true;
+        while (sp < sl && dp < dl) {
+            byte b = src.get(sp);
+            if (b < 0) {
+                ascii = false;
+                break;
+            }
+            dst[dp++] = (char) b;
+            sp++;
+        }
+        src.position(sp);
+        out.position(dp - out.arrayOffset());
+        return ascii;
+    }
+
+    /**
+     * {@link #decodeUtf8()} for input without an array.
+     */
+    private boolean decodeUtf8Buffer() {
+        ByteBuffer src = in;
+        char[] dst = out.array();
+        int sp = src.position();
+        int sl = src.limit();
+        int dp = out.arrayOffset() + out.position();
+        int dl = out.arrayOffset() + out.limit();
+        boolean valid = true;
+        while (sp < sl && dp < dl) {
+            int b1 = src.get(sp);
+            if (b1 >= 0) {
+                dst[dp++] = (char) b1;
+                sp++;
+                continue;
+            }
+            b1 &= 0xff;
+            if (b1 >= 0xc2 && b1 <= 0xdf) {
+                if (sl - sp < 2) {
+                    break;
+                }
+                int b2 = src.get(sp + 1);
+                if ((b2 & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                dst[dp++] = (char) (((b1 & 0x1f) << 6) | (b2 & 0x3f));
+                sp += 2;
+            } else if (b1 >= 0xe0 && b1 <= 0xef) {
+                if (sl - sp < 3) {
+                    break;
+                }
+                int b2 = src.get(sp + 1) & 0xff;
+                int b3 = src.get(sp + 2);
+                // Reject overlong forms and surrogates
+                int low = b1 == 0xe0 ? 0xa0 : 0x80;
+                int high = b1 == 0xed ? 0x9f : 0xbf;
+                if (b2 < low || b2 > high || (b3 & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                dst[dp++] = (char) (((b1 & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f));
+                sp += 3;
+            } else if (b1 >= 0xf0 && b1 <= 0xf4) {
+                if (dl - dp < 2) {
+                    break;
+                }
+                if (sl - sp < 4) {
+                    break;
+                }
+                int b2 = src.get(sp + 1) & 0xff;
+                int b3 = src.get(sp + 2);
+                int b4 = src.get(sp + 3);
+                int low = b1 == 0xf0 ? 0x90 : 0x80;
+                int high = b1 == 0xf4 ? 0x8f : 0xbf;
+                if (b2 < low || b2 > high || (b3 & 0xc0) != 0x80 || (b4 & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                int cp = ((b1 & 0x07) << 18) | ((b2 & 0x3f) << 12) | ((b3 & 0x3f) << 6) | (b4 & 0x3f);
+                dst[dp++] = Character.highSurrogate(cp);
+                dst[dp++] = Character.lowSurrogate(cp);
+                sp += 4;
+            } else {
+                valid = false;
+                break;
+            }
+        }
+        src.position(sp);
+        out.position(dp - out.arrayOffset());
+        return valid;
+    }
+
+    @Override
+    public void close() throws IOException {
+        InputStream s = stream;
+        stream = null;
+        in = null;
+        if (s != null) {
+            s.close();
+        }
+    }
+}
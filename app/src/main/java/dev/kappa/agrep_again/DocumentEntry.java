@@ -0,0 +1,32 @@
+package dev.kappa.agrep_again;
+
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+/**
+ * Lightweight snapshot of one document row returned by a SAF children query.
+ */
+public class DocumentEntry {
+    public final Uri uri;
+    public final String documentId;
+    public final String displayName;
+    public final String mimeType;
+    /** Size in bytes, or -1 when the provider does not report it. */
+    public final long size;
+    /** Last modified time in milliseconds since epoch, or 0 when unknown. */
+    public final long lastModified;
+
+    public DocumentEntry(Uri uri, String documentId, String displayName, String mimeType,
+                         long size, long lastModified) {
+        this.uri = uri;
+        this.documentId = documentId;
+        this.displayName = displayName;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public boolean isDirectory() {
+        return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+    }
+}
@@ -0,0 +1,93 @@
+package dev.kappa.agrep_again;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Enumerates SAF document trees with a single {@link ContentResolver} query per directory.
+ *
+ * <p>{@code DocumentFile.listFiles()} only fetches child IDs; every later {@code getName()},
+ * {@code isDirectory()} or {@code length()} call is another binder round trip. This class
+ * projects all the columns the scanner needs in one pass instead.</p>
+ */
+public class DocumentEnumerator {
+    private static final String TAG = "DocumentEnumerator";
+
+    private static final String[] PROJECTION = {
+        Document.COLUMN_DOCUMENT_ID,
+        Document.COLUMN_DISPLAY_NAME,
+        Document.COLUMN_MIME_TYPE,
+        Document.COLUMN_SIZE,
+        Document.COLUMN_LAST_MODIFIED
+    };
+
+    private final ContentResolver contentResolver;
+
+    public DocumentEnumerator(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Resolve the root document of a tree URI.
+     * @param treeUri Tree URI granted through {@code ACTION_OPEN_DOCUMENT_TREE}
+     * @return The root entry, or null if the provider cannot resolve it
+     */
+    public DocumentEntry queryRoot(Uri treeUri) {
+        String rootId;
+        try {
+            rootId = DocumentsContract.getTreeDocumentId(treeUri);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Not a tree URI: " + treeUri, e);
+            return null;
+        }
+        Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, rootId);
+        List<DocumentEntry> rows = query(treeUri, rootUri);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * List the direct children of a directory in a single query.
+     * @param treeUri Tree URI the directory belongs to
+     * @param parentDocumentId Document ID of the directory
+     * @return Child entries; empty if the directory is empty or cannot be read
+     */
+    public List<DocumentEntry> listChildren(Uri treeUri, String parentDocumentId) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, parentDocumentId);
+        return query(treeUri, childrenUri);
+    }
+
+    private List<DocumentEntry> query(Uri treeUri, Uri queryUri) {
+        try (Cursor cursor = contentResolver.query(queryUri, PROJECTION, null, null, null)) {
+            if (cursor == null) {
+                return Collections.emptyList();
+            }
+            List<DocumentEntry> entries = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                String documentId = cursor.getString(0);
+                if (documentId == null) {
+                    continue;
+                }
+                entries.add(new DocumentEntry(
+                    DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId),
+                    documentId,
+                    cursor.getString(1),
+                    cursor.getString(2),
+                    cursor.isNull(3) ? -1 : cursor.getLong(3),
+                    cursor.isNull(4) ? 0 : cursor.getLong(4)
+                ));
+            }
+            return entries;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed query: " + queryUri, e);
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package dev.kappa.agrep_again;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the lines of one document that match a search. There are three ways to scan, and
+ * the engine picks the fastest one the query allows:
+ * <ul>
+ *   <li>{@link #scanEncoded} searches the raw bytes for the query's required literals and
+ *       decodes only the lines with a hit;</li>
+ *   <li>{@link #scanWindows} searches large windows of decoded lines at once;</li>
+ *   <li>{@link #scanLines} matches line by line, for approximate queries and patterns
+ *       that look past the line.</li>
+ * </ul>
+ * <p>All of them number lines the way {@link BufferedReader#readLine()} splits them, and
+ * match a line longer than the longest window in overlapping segments. A document is either
+ * read from a stream after its prefetched head, or mapped into memory and scanned in place.</p>
+ *
+ * <p>The buffers and matchers are reused for every document, so a line that does not
+ * match allocates nothing. Not thread safe; each match worker keeps its own.</p>
+ */
+final class DocumentScanner {
+    /** Decoded characters searched at once by {@link #scanWindows}. */
+    static final int WINDOW_SIZE = 65536;
+    /** Bytes searched at once by {@link #scanEncoded}. */
+    static final int ENCODED_CHUNK_SIZE = 65536;
+    /**
+     * Longest part of a line held in memory at once; longer lines, such as minified files,
+     * are matched in segments.
+     */
+    static final int MAX_LINE_WINDOW = 1024 * 1024;
+    /** Characters each segment of a long line repeats from the one before. */
+    static final int LINE_OVERLAP = 4096;
+
+    /**
+     * Receives the matching lines of a document.
+     */
+    interface Sink {
+        /**
+         * @param text The line, or the segment of a long line, that matched
+         * @param hitStart Start of the hit in {@code text}, 0 if unknown
+         * @param textOffset Offset of {@code text} in its line
+         */
+        void add(int line, CharSequence text, int hitStart, int textOffset, int errors);
+
+        /**
+         * @return true once the rest of the document need not be scanned
+         */
+        boolean isStopped();
+    }
+
+    /** Trigrams of every line, if the scan collects them */
+    final TrigramIndex.Collector collector = new TrigramIndex.Collector();
+    private final int windowSize;
+    private final int chunkSize;
+    private final int maxLineWindow;
+    private final LineScanner lines;
+    private final DocumentDecoder decoder;
+    private final CharSlice windowText = new CharSlice();
+    private final CharSlice lineText = new CharSlice();
+    private char[] window;
+    private byte[] chunk;
+    /** Name of the document's charset, null for the platform default */
+    private String charsetName;
+    /** The document, or its head if {@link #stream} has the rest; unused if it is mapped */
+    private byte[] content;
+    private int length;
+    private InputStream stream;
+    /** The whole document mapped into memory, or null */
+    private ByteBuffer mapped;
+    private Matcher matcher;
+    private Matcher windowMatcher;
+    private Matcher highlighter;
+    private BitapMatcher fuzzy;
+    private long[] fuzzyState;
+
+    DocumentScanner() {
+        this(WINDOW_SIZE, ENCODED_CHUNK_SIZE, MAX_LINE_WINDOW, LINE_OVERLAP);
+    }
+
+    /**
+     * @param windowSize Decoded characters searched at once
+     * @param chunkSize Bytes searched at once
+     * @param maxLineWindow Longest part of a line held in memory at once
+     * @param lineOverlap Characters each segment of a long line repeats from the one before
+     */
+    DocumentScanner(int windowSize, int chunkSize, int maxLineWindow, int lineOverlap) {
+        this.windowSize = windowSize;
+        this.chunkSize = chunkSize;
+        this.maxLineWindow = maxLineWindow;
+        this.lines = new LineScanner(windowSize, maxLineWindow, lineOverlap);
+        this.decoder = new DocumentDecoder(chunkSize);
+        this.window = new char[windowSize];
+        this.chunk = new byte[chunkSize];
+    }
+
+    /**
+     * @return A matcher whose region bounds are transparent and do not anchor, so ^ and
+     *         $ only match at the ends of the text
+     */
+    private Matcher matcher(Pattern pattern) {
+        if (matcher == null || matcher.pattern() != pattern) {
+            matcher = pattern.matcher("").useTransparentBounds(true).useAnchoringBounds(false);
+        }
+        return matcher;
+    }
+
+    private Matcher windowMatcher(Pattern pattern) {
+        if (windowMatcher == null || windowMatcher.pattern() != pattern) {
+            windowMatcher = pattern.matcher("");
+        }
+        return windowMatcher;
+    }
+
+    /**
+     * @return A matcher for finding the match ranges of a result, apart from the one
+     *         the scan loop is using
+     */
+    Matcher highlighter(Pattern pattern) {
+        if (highlighter == null || highlighter.pattern() != pattern) {
+            highlighter = pattern.matcher("");
+        }
+        return highlighter;
+    }
+
+    private long[] fuzzyState(BitapMatcher fuzzy) {
+        if (this.fuzzy != fuzzy) {
+            this.fuzzy = fuzzy;
+            fuzzyState = fuzzy.newState();
+        }
+        return fuzzyState;
+    }
+
+    /**
+     * Give up buffers grown for a very long line.
+     */
+    void trim() {
+        if (window.length > 4 * windowSize) {
+            window = new char[windowSize];
+        }
+        if (chunk.length > 4 * chunkSize) {
+            chunk = new byte[chunkSize];
+        }
+        decoder.trim();
+    }
+
+    /**
+     * Start on a document: the first {@code length} bytes of {@code content}, followed by
+     * the rest of {@code stream} if it is not null. A null charset name means the platform
+     * default.
+     */
+    void reset(String charsetName, byte[] content, int length, InputStream stream) {
+        this.charsetName = charsetName;
+        this.content = content;
+        this.length = length;
+        this.stream = stream;
+        this.mapped = null;
+    }
+
+    /**
+     * Start on a document mapped into memory, from its position to its limit, which is
+     * scanned in place.
+     */
+    void reset(String charsetName, ByteBuffer mapped) {
+        this.charsetName = charsetName;
+        this.content = null;
+        this.length = 0;
+        this.stream = null;
+        this.mapped = mapped.slice();
+    }
+
+    private Reader openReader() throws IOException {
+        if (mapped != null) {
+            decoder.reset(charsetName, mapped);
+        } else {
+            decoder.reset(charsetName, content, length, stream);
+        }
+        return decoder;
+    }
+
+    /**
+     * Decode the whole document and match it line by line.
+     * @param collectTrigrams Whether to add every line to {@link #collector}
+     */
+    void scanLines(SearchRequest request, boolean collectTrigrams, Sink sink) throws IOException {
+        if (collectTrigrams) {
+            collector.clear();
+        }
+        Reader reader = null;
+        try {
+            reader = openReader();
+
+            LineScanner scanner = lines;
+            scanner.reset(reader);
+            scanLines(scanner, request, collectTrigrams, sink);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Match the lines left in {@code scanner}. A line longer than the longest window is
+     * matched in overlapping segments and reported at most once.
+     */
+    private void scanLines(LineScanner scanner, SearchRequest request, boolean collectTrigrams,
+                           Sink sink) throws IOException {
+        LiteralSearch literal = request.literal;
+        LiteralSearch prefilter = request.prefilter;
+        BitapMatcher fuzzy = request.fuzzy;
+        long[] fuzzyState = fuzzy != null ? fuzzyState(fuzzy) : null;
+        int errors = 0;
+        Matcher m = matcher(request.pattern);
+        int reportedLine = 0;
+
+        while (scanner.next()) {
+            if (sink.isStopped()) {
+                break;
+            }
+
+            // A view of the scanner's buffer; only a snippet is copied if it matches
+            CharSequence text = scanner.line();
+            if (collectTrigrams) {
+                collector.addLine(text);
+            }
+            if (scanner.lineNumber() == reportedLine) {
+                // A later segment of a long line that already matched
+                continue;
+            }
+            int hit = -1;
+            if (fuzzy != null) {
+                errors = fuzzy.minErrors(text, fuzzyState);
+                // Where an approximate match lies is not known
+                hit = errors >= 0 ? 0 : -1;
+            } else if (literal != null) {
+                hit = literal.indexOf(text, 0);
+            } else if (prefilter != null && !prefilter.contains(text)) {
+                // Lacks every literal the pattern requires
+                hit = -1;
+            } else {
+                // A segment cut from a long line is matched with the text around it in view
+                int from = scanner.contextStart();
+                m.reset(scanner.context()).region(from, from + text.length());
+                hit = m.find() ? m.start() - from : -1;
+            }
+
+            if (hit >= 0) {
+                sink.add(scanner.lineNumber(), text, hit, scanner.lineOffset(), errors);
+                reportedLine = scanner.lineNumber();
+            }
+        }
+    }
+
+    /**
+     * Decode the document into large windows of whole lines and search each window at once.
+     * Only lines around a hit are checked on their own, and line numbers are counted only
+     * up to each hit. Needs {@link SearchRequest#literal} or {@link SearchRequest#windowPattern}.
+     * @param collectTrigrams Whether to add every line to {@link #collector}
+     */
+    void scanWindows(SearchRequest request, boolean collectTrigrams, Sink sink) throws IOException {
+        if (collectTrigrams) {
+            collector.clear();
+        }
+        LiteralSearch literal = request.literal;
+        LiteralSearch prefilter = request.prefilter;
+        Matcher windowMatcher = literal == null ? windowMatcher(request.windowPattern) : null;
+        Matcher lineMatcher = literal == null ? matcher(request.pattern) : null;
+        CharSlice text = windowText;
+        Reader reader = null;
+        try {
+            reader = openReader();
+
+            LineCounter counter = new LineCounter();
+            char[] window = this.window;
+            int filled = 0;
+            boolean eof = false;
+            int start = 0;
+            while (!sink.isStopped()) {
+                if (start > 0) {
+                    System.arraycopy(window, start, window, 0, filled - start);
+                    filled -= start;
+                    start = 0;
+                }
+                if (filled == window.length) {
+                    // The current line does not fit
+                    if (window.length >= maxLineWindow) {
+                        // Match the rest of the document in segments of bounded length
+                        LineScanner scanner = lines;
+                        scanner.reset(reader, counter.count(window, 0, 0));
+                        scanner.preload(window, 0, filled);
+                        scanLines(scanner, request, collectTrigrams, sink);
+                        break;
+                    }
+                    window = Arrays.copyOf(window, window.length * 2);
+                    this.window = window;
+                }
+                int n = reader.read(window, filled, window.length - filled);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    filled += n;
+                }
+
+                // Only search complete lines; the rest waits for the next read
+                int end = eof ? filled : afterLastLineBreak(window, start, filled);
+                text.set(window, 0, end);
+                if (windowMatcher != null) {
+                    windowMatcher.reset(text);
+                }
+                if (collectTrigrams) {
+                    collector.addLines(text, start, end);
+                }
+                int counted = start;
+                int pos = start;
+                while (pos < end) {
+                    if (prefilter != null) {
+                        int required = prefilter.indexOf(text, pos);
+                        if (required < 0) {
+                            break;
+                        }
+                        pos = lineStart(window, pos, required);
+                    }
+                    int hit;
+                    if (literal != null) {
+                        hit = literal.indexOf(text, pos);
+                    } else {
+                        hit = windowMatcher.find(pos) ? windowMatcher.start() : -1;
+                    }
+                    if (hit < 0) {
+                        break;
+                    }
+                    if (hit > pos && window[hit] == '\n' && window[hit - 1] == '\r') {
+                        // Inside CR LF: the hit belongs to the line the pair ends
+                        hit--;
+                    }
+                    int lineStart = lineStart(window, pos, hit);
+                    int lineEnd = hit;
+                    while (lineEnd < end && !isLineBreak(window[lineEnd])) {
+                        lineEnd++;
+                    }
+                    int line = counter.count(window, counted, lineStart) + 1;
+                    counted = lineStart;
+
+                    // A window match may run across lines; the line has to match by itself
+                    lineText.set(window, lineStart, lineEnd);
+                    int lineHit = literal != null ? literal.indexOf(lineText, 0)
+                        : lineMatcher.reset(lineText).find() ? lineMatcher.start() : -1;
+                    if (lineHit >= 0) {
+                        sink.add(line, lineText, lineHit, 0, 0);
+                    }
+                    pos = lineEnd;
+                    if (pos < end) {
+                        pos += window[pos] == '\r' && pos + 1 < end && window[pos + 1] == '\n' ? 2 : 1;
+                    }
+                }
+                counter.count(window, counted, end);
+                start = end;
+
+                if (eof) {
+                    break;
+                }
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Search the document's bytes for the encoded required literals and decode only the
+     * lines with a hit, which are then checked with the query's own matcher.
+     * @param encoded The query's required literals encoded in the document's charset
+     */
+    void scanEncoded(SearchRequest request, EncodedLiteral encoded, Sink sink) throws IOException {
+        if (mapped != null) {
+            scanMapped(request, encoded, sink);
+            return;
+        }
+        Charset charset = charsetFor(charsetName);
+        LiteralSearch literal = request.literal;
+        Matcher m = literal == null ? matcher(request.pattern) : null;
+        EncodedLiteral.Cursor cursor = encoded.cursor();
+        InputStream in = stream;
+        byte[] buffer = in == null ? content : chunk;
+        int filled = length;
+        boolean eof = in == null;
+        if (in != null) {
+            if (buffer.length < filled) {
+                buffer = new byte[filled];
+                chunk = buffer;
+            }
+            System.arraycopy(content, 0, buffer, 0, filled);
+        }
+        LineCounter counter = new LineCounter();
+
+        int start = 0;
+        while (!sink.isStopped()) {
+            if (!eof) {
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                    start = 0;
+                    cursor.reset();
+                }
+                if (filled == buffer.length) {
+                    // The current line does not fit
+                    if (buffer.length >= maxLineWindow) {
+                        // Decode the rest of the document and match it in segments of
+                        // bounded length
+                        Reader reader = decoder;
+                        try {
+                            decoder.reset(charsetName, buffer, filled, in);
+                            LineScanner scanner = lines;
+                            scanner.reset(reader, counter.count(buffer, 0, 0));
+                            scanLines(scanner, request, false, sink);
+                        } finally {
+                            closeQuietly(reader);
+                        }
+                        break;
+                    }
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    chunk = buffer;
+                }
+                int n = in.read(buffer, filled, buffer.length - filled);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    filled += n;
+                }
+            }
+
+            // Only search complete lines; the rest waits for the next read
+            int end = eof ? filled : afterLastLineBreak(buffer, start, filled);
+            int counted = start;
+            int pos = start;
+            while (pos < end) {
+                int hit = cursor.indexOf(buffer, pos, end);
+                if (hit < 0) {
+                    break;
+                }
+                int lineStart = hit;
+                while (lineStart > pos && !isLineBreak(buffer[lineStart - 1])) {
+                    lineStart--;
+                }
+                int lineEnd = hit;
+                while (lineEnd < end && !isLineBreak(buffer[lineEnd])) {
+                    lineEnd++;
+                }
+                int line = counter.count(buffer, counted, lineStart) + 1;
+                counted = lineStart;
+
+                String text = new String(buffer, lineStart, lineEnd - lineStart, charset);
+                int lineHit = literal != null ? literal.indexOf(text, 0)
+                    : m.reset(text).find() ? m.start() : -1;
+                if (lineHit >= 0) {
+                    sink.add(line, text, lineHit, 0, 0);
+                }
+                pos = lineEnd;
+            }
+            counter.count(buffer, counted, end);
+            start = end;
+
+            if (eof) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * {@link #scanEncoded} over a mapped document, which is searched in place. A hit in a
+     * line longer than the longest window starts decoding the rest of the document, which
+     * is then matched in segments of bounded length.
+     */
+    private void scanMapped(SearchRequest request, EncodedLiteral encoded, Sink sink) throws IOException {
+        Charset charset = charsetFor(charsetName);
+        LiteralSearch literal = request.literal;
+        Matcher m = literal == null ? matcher(request.pattern) : null;
+        EncodedLiteral.Cursor cursor = encoded.cursor();
+        ByteBuffer buffer = mapped;
+        int end = buffer.limit();
+        LineCounter counter = new LineCounter();
+
+        int counted = 0;
+        int pos = 0;
+        while (pos < end && !sink.isStopped()) {
+            int hit = cursor.indexOf(buffer, pos, end);
+            if (hit < 0) {
+                break;
+            }
+            int lineStart = hit;
+            while (lineStart > pos && !isLineBreak(buffer.get(lineStart - 1))) {
+                lineStart--;
+            }
+            int lineEnd = hit;
+            while (lineEnd < end && !isLineBreak(buffer.get(lineEnd))) {
+                lineEnd++;
+            }
+            if (lineEnd - lineStart > maxLineWindow) {
+                Reader reader = decoder;
+                try {
+                    decoder.reset(charsetName, slice(buffer, lineStart, end));
+                    LineScanner scanner = lines;
+                    scanner.reset(reader, counter.count(buffer, counted, lineStart));
+                    scanLines(scanner, request, false, sink);
+                } finally {
+                    closeQuietly(reader);
+                }
+                return;
+            }
+            int line = counter.count(buffer, counted, lineStart) + 1;
+            counted = lineStart;
+
+            String text = charset.decode(slice(buffer, lineStart, lineEnd)).toString();
+            int lineHit = literal != null ? literal.indexOf(text, 0)
+                : m.reset(text).find() ? m.start() : -1;
+            if (lineHit >= 0) {
+                sink.add(line, text, lineHit, 0, 0);
+            }
+            pos = lineEnd;
+        }
+    }
+
+    /**
+     * @return A view of the bytes of {@code buffer} at {@code [from, to)}
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(to);
+        view.position(from);
+        return view.slice();
+    }
+
+    /**
+     * @return The charset {@link DocumentDecoder} would use for {@code name}, or null if
+     *         it is not supported
+     */
+    static Charset charsetFor(String name) {
+        if (name == null) {
+            return Charset.defaultCharset();
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private static int afterLastLineBreak(byte[] buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (isLineBreak(buffer[i])) {
+                return i + 1;
+            }
+        }
+        return from;
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r';
+    }
+
+    /**
+     * @return Position after the last complete line break in {@code buffer[from, to)}. A CR
+     *         at the very end may be the first half of CR LF and is left for the next read.
+     */
+    private static int afterLastLineBreak(char[] buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (isLineBreak(buffer[i]) && !(buffer[i] == '\r' && i == to - 1)) {
+                return i + 1;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @return Start of the line containing {@code at}, searching back no further than
+     *         {@code from}, which is itself a line start
+     */
+    private static int lineStart(char[] buffer, int from, int at) {
+        int i = at;
+        while (i > from && !isLineBreak(buffer[i - 1])) {
+            i--;
+        }
+        return i;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package dev.kappa.agrep_again;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The literals a query requires, encoded into a document's charset, so the document can
+ * be searched as bytes and only the lines around a hit need decoding.
+ *
+ * <p>Hits are candidates: in multi-byte charsets such as Shift_JIS a hit may start in the
+ * middle of a character, and a regex needs more than its literals, so each hit line is
+ * decoded and confirmed with the request's own matcher. Every real match is found as a
+ * hit, which limits this to charsets where an ASCII line break is always a line break and
+ * to literals whose case-insensitive variants can all be expressed as bytes.</p>
+ */
+final class EncodedLiteral {
+    private static final int SHIFT_TABLE_SIZE = 256;
+    /** Characters outside ASCII that fold to each ASCII character, e.g. U+212A KELVIN SIGN to 'k'. */
+    private static final char[][] ASCII_FOLD_VARIANTS = buildAsciiFoldVariants();
+
+    private final byte[][] needles;
+    private final int[][] shifts;
+    private final boolean foldAscii;
+
+    private EncodedLiteral(byte[][] needles, boolean foldAscii) {
+        this.needles = needles;
+        this.foldAscii = foldAscii;
+        this.shifts = new int[needles.length][];
+        for (int n = 0; n < needles.length; n++) {
+            byte[] needle = needles[n];
+            int[] shift = new int[SHIFT_TABLE_SIZE];
+            Arrays.fill(shift, needle.length);
+            for (int i = 0; i < needle.length - 1; i++) {
+                shift[needle[i] & 0xFF] = needle.length - 1 - i;
+            }
+            shifts[n] = shift;
+        }
+    }
+
+    /**
+     * @return A byte-level search for any of {@code literals} in documents encoded with
+     *         {@code charset}, or null if the document has to be decoded
+     */
+    static EncodedLiteral create(List<String> literals, boolean ignoreCase, Charset charset) {
+        if (literals.isEmpty() || !isStatelessAsciiCompatible(charset)) {
+            return null;
+        }
+        for (String literal : literals) {
+            if (literal.isEmpty() || literal.indexOf('\n') >= 0 || literal.indexOf('\r') >= 0) {
+                return null;
+            }
+        }
+        List<String> variants = new ArrayList<>(literals);
+        int required = variants.size();
+        if (ignoreCase) {
+            boolean[] seen = new boolean[128];
+            String all = String.join("", literals);
+            for (int i = 0; i < all.length(); i++) {
+                char c = all.charAt(i);
+                if (c >= 0x80) {
+                    // Caseless scripts such as kana and kanji encode the same in every case
+                    if (Character.getType(c) != Character.OTHER_LETTER) {
+                        return null;
+                    }
+                    continue;
+                }
+                char folded = LiteralMatcher.fold(c);
+                if (!seen[folded]) {
+                    seen[folded] = true;
+                    for (char variant : ASCII_FOLD_VARIANTS[folded]) {
+                        variants.add(String.valueOf(variant));
+                    }
+                }
+            }
+        }
+
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        List<byte[]> needles = new ArrayList<>();
+        for (int v = 0; v < variants.size(); v++) {
+            byte[] bytes = encode(encoder, variants.get(v));
+            if (bytes == null) {
+                if (v < required) {
+                    return null;
+                }
+                // A variant the charset cannot express cannot occur in the document
+                continue;
+            }
+            if (ignoreCase) {
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = foldByte(bytes[i]);
+                }
+            }
+            needles.add(bytes);
+        }
+        return new EncodedLiteral(needles.toArray(new byte[0][]), ignoreCase);
+    }
+
+    /**
+     * Per-document search position; remembers where each needle occurs next so a region is
+     * scanned once per needle however many hits it has.
+     */
+    final class Cursor {
+        private final int[] next = new int[needles.length];
+        private int regionEnd = -1;
+
+        /**
+         * @return Start of the first hit in {@code [from, to)}, or -1 if there is none
+         */
+        int indexOf(byte[] buffer, int from, int to) {
+            if (to != regionEnd) {
+                Arrays.fill(next, Integer.MIN_VALUE);
+                regionEnd = to;
+            }
+            int best = -1;
+            for (int n = 0; n < needles.length; n++) {
+                int at = next[n];
+                if (at != -1 && at < from) {
+                    at = search(n, buffer, from, to);
+                    next[n] = at;
+                }
+                if (at >= 0 && (best < 0 || at < best)) {
+                    best = at;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Search the bytes of {@code buffer} at {@code [from, to)} in place, such as a
+         * mapped document.
+         * @return Start of the first hit in {@code [from, to)}, or -1 if there is none
+         */
+        int indexOf(ByteBuffer buffer, int from, int to) {
+            if (to != regionEnd) {
+                Arrays.fill(next, Integer.MIN_VALUE);
+                regionEnd = to;
+            }
+            int best = -1;
+            for (int n = 0; n < needles.length; n++) {
+                int at = next[n];
+                if (at != -1 && at < from) {
+                    at = search(n, buffer, from, to);
+                    next[n] = at;
+                }
+                if (at >= 0 && (best < 0 || at < best)) {
+                    best = at;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Forget the remembered positions, for a buffer whose contents have moved.
+         */
+        void reset() {
+            regionEnd = -1;
+        }
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    private int search(int n, byte[] buffer, int from, int to) {
+        byte[] needle = needles[n];
+        int[] shift = shifts[n];
+        int last = needle.length - 1;
+        byte lastByte = needle[last];
+        int i = from;
+        int limit = to - needle.length;
+        while (i <= limit) {
+            byte b = byteAt(buffer, i + last);
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && byteAt(buffer, i + j) == needle[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[b & 0xFF];
+        }
+        return -1;
+    }
+
+    private byte byteAt(byte[] buffer, int index) {
+        byte b = buffer[index];
+        return foldAscii ? foldByte(b) : b;
+    }
+
+    private int search(int n, ByteBuffer buffer, int from, int to) {
+        byte[] needle = needles[n];
+        int[] shift = shifts[n];
+        int last = needle.length - 1;
+        byte lastByte = needle[last];
+        int i = from;
+        int limit = to - needle.length;
+        while (i <= limit) {
+            byte b = byteAt(buffer, i + last);
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && byteAt(buffer, i + j) == needle[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[b & 0xFF];
+        }
+        return -1;
+    }
+
+    private byte byteAt(ByteBuffer buffer, int index) {
+        byte b = buffer.get(index);
+        return foldAscii ? foldByte(b) : b;
+    }
+
+    private static byte foldByte(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] encode(CharsetEncoder encoder, String text) {
+        try {
+            ByteBuffer encoded = encoder.reset().encode(CharBuffer.wrap(text));
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            return bytes.length > 0 ? bytes : null;
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether every byte below 0x80 that is not part of a multi-byte sequence means
+     *         the same as in ASCII, and line breaks are single bytes that never occur inside
+     *         a multi-byte sequence
+     */
+    static boolean isStatelessAsciiCompatible(Charset charset) {
+        String name = charset.name().toUpperCase(Locale.ROOT);
+        // Escape-sequence encodings change meaning of ASCII bytes by state
+        if (name.contains("2022") || name.startsWith("HZ") || name.startsWith("UTF-7")) {
+            return false;
+        }
+        if (!charset.canEncode()) {
+            return false;
+        }
+        CharsetEncoder encoder = charset.newEncoder();
+        byte[] breaks = encode(encoder, "\r\n");
+        return breaks != null && breaks.length == 2 && breaks[0] == '\r' && breaks[1] == '\n';
+    }
+
+    private static char[][] buildAsciiFoldVariants() {
+        List<List<Character>> variants = new ArrayList<>();
+        for (int i = 0; i < 128; i++) {
+            variants.add(new ArrayList<>());
+        }
+        for (int c = 0x80; c <= Character.MAX_VALUE; c++) {
+            if (Character.isSurrogate((char) c)) {
+                continue;
+            }
+            char folded = LiteralMatcher.fold((char) c);
+            if (folded < 128) {
+                variants.get(folded).add((char) c);
+            }
+        }
+        char[][] table = new char[128][];
+        for (int i = 0; i < 128; i++) {
+            List<Character> list = variants.get(i);
+            table[i] = new char[list.size()];
+            for (int j = 0; j < list.size(); j++) {
+                table[i][j] = list.get(j);
+            }
+        }
+        return table;
+    }
+}
@@ -3,276 +3,1086 @@ package dev.kappa.agrep_again;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
-import androidx.documentfile.provider.DocumentFile;
-
-import org.mozilla.universalchardet.UniversalDetector;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * ExecutorService-based grep engine implementation using SAF (Storage Access Framework).
+ *
+ * <p>A search runs as a pipeline of three stages connected by bounded queues:</p>
+ * <ol>
+ *   <li>traversal, on a work-stealing {@link ForkJoinPool}, lists directories and emits
+ *       candidate documents that pass the extension filter;</li>
+ *   <li>I/O workers open each candidate, detect its charset and prefetch its bytes, or map
+ *       large files of local storage providers into memory;</li>
+ *   <li>matcher workers decode the prefetched bytes and run the pattern.</li>
+ * </ol>
+ * <p>Each stage has its own thread count, and a full queue blocks the stage feeding it, so
+ * slow provider opens overlap with regex work instead of alternating with it.</p>
+ *
+ * <p>Every root keeps a {@link TrigramIndex} in app-private storage. Documents that are
+ * unchanged since they were indexed and cannot contain the query are skipped without being
+ * opened; the index is rebuilt after a search that saw new or modified documents.</p>
+ *
+ * <p>Per-document results are also kept in a {@link ResultCache} keyed by root and query,
+ * so rerunning a query reuses the matches of unchanged documents and rescans only new or
+ * modified ones.</p>
  */
 public class ExecutorGrepEngine implements GrepEngine {
+    /** Default number of scanning workers. SAF scans are bound on provider latency, so use at least two. */
+    public static final int DEFAULT_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final int CANDIDATE_QUEUE_CAPACITY = 256;
+    /** Documents up to this size are read completely by the I/O stage. */
+    private static final int PREFETCH_LIMIT = 256 * 1024;
+    private static final int SNIFF_SIZE = 4096;
+    /** Providers whose documents are plain local files, so mapping them is safe and cheap. */
+    private static final Set<String> LOCAL_AUTHORITIES = new HashSet<>(Arrays.asList(
+        "com.android.externalstorage.documents",
+        "com.android.providers.downloads.documents"));
+    private static final int MAX_ENCODED_LITERALS = 4;
+    /** Matches of one document collected before they are added to the result store. */
+    private static final int MAX_BATCH = 1024;
+    /** Time between progress reports; only the first match is reported at once. */
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(75);
+    private static final long QUEUE_POLL_MILLIS = 50;
+    private static final String INDEX_DIR = "trigram";
+    private static final String RESULT_DIR = "results";
+    /** Matches of searches too large to keep in memory. */
+    private static final String SPILL_DIR = "spill";
+    /** Result caches kept across all roots and queries. */
+    private static final int MAX_CACHED_RESULTS = 64;
+    /** Roots with more matches than this in one search are not cached, nor their matches kept for it. */
+    private static final int MAX_CACHED_MATCHES = 20000;
+
     private final Context context;
     private final ContentResolver contentResolver;
+    private final DocumentEnumerator enumerator;
+    private final File indexDir;
+    private final File resultDir;
+    private final File spillDir;
+    private final CharsetCache charsetCache;
     private final ExecutorService executor;
-    private final AtomicBoolean cancelled;
+    private final ForkJoinPool workers;
+    private final ExecutorService stageExecutor;
+    private final int ioThreads;
+    private final int matchThreads;
+    private volatile AtomicBoolean cancelled;
     private Future<?> currentTask;
 
     public ExecutorGrepEngine(Context context) {
+        this(context, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param context Context used to resolve document trees
+     * @param parallelism Number of threads for traversal and I/O; matching uses at most one per core
+     */
+    public ExecutorGrepEngine(Context context, int parallelism) {
+        this(context, parallelism, parallelism,
+                Math.min(parallelism, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param context Context used to resolve document trees
+     * @param traversalThreads Number of threads listing directories
+     * @param ioThreads Number of threads opening and prefetching documents
+     * @param matchThreads Number of threads decoding and matching documents
+     */
+    public ExecutorGrepEngine(Context context, int traversalThreads, int ioThreads, int matchThreads) {
+        if (traversalThreads < 1 || ioThreads < 1 || matchThreads < 1) {
+            throw new IllegalArgumentException("thread counts must be positive: "
+                    + traversalThreads + "/" + ioThreads + "/" + matchThreads);
+        }
         this.context = context;
         this.contentResolver = context.getContentResolver();
+        this.enumerator = new DocumentEnumerator(contentResolver);
+        this.indexDir = new File(context.getFilesDir(), INDEX_DIR);
+        this.resultDir = new File(context.getCacheDir(), RESULT_DIR);
+        this.spillDir = new File(context.getCacheDir(), SPILL_DIR);
+        deleteSpilledResults(spillDir);
+        this.charsetCache = CharsetCache.get(context);
         this.executor = Executors.newSingleThreadExecutor();
+        this.workers = new ForkJoinPool(traversalThreads);
+        this.stageExecutor = Executors.newFixedThreadPool(ioThreads + matchThreads);
+        this.ioThreads = ioThreads;
+        this.matchThreads = matchThreads;
         this.cancelled = new AtomicBoolean(false);
     }
 
     @Override
     public void search(SearchRequest request, ProgressCallback callback) {
-        cancelled.set(false);
+        // Each search gets its own flag so tasks still draining from a cancelled
+        // search cannot be revived by the next one.
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        this.cancelled = cancelled;
 
         currentTask = executor.submit(() -> {
             long startTime = System.currentTimeMillis();
             AtomicInteger fileCount = new AtomicInteger(0);
             AtomicInteger matchCount = new AtomicInteger(0);
-            List<GrepView.Data> allMatches = Collections.synchronizedList(new ArrayList<>());
+            ResultStore results = new ResultStore(spillDir);
+            ScanState state = new ScanState(request, callback, cancelled, fileCount, matchCount,
+                    results, ioThreads, matchThreads);
 
+            List<Future<?>> stages = new ArrayList<>(ioThreads + matchThreads);
+            List<RootScan> roots = new ArrayList<>();
+            boolean completed = false;
+            boolean stagesDone = false;
             try {
-                for (CheckedString dir : request.prefs.mDirList) {
-                    if (cancelled.get()) {
-                        callback.onComplete(new SearchSummary(
-                            request.query,
-                            fileCount.get(),
-                            matchCount.get(),
-                            allMatches,
-                            System.currentTimeMillis() - startTime
-                        ));
-                        return;
-                    }
+                for (int i = 0; i < ioThreads; i++) {
+                    stages.add(stageExecutor.submit(() -> runReadStage(state)));
+                }
+                for (int i = 0; i < matchThreads; i++) {
+                    stages.add(stageExecutor.submit(() -> runMatchStage(state)));
+                }
 
-                    if (dir.checked && dir.hasValue()) {
-                        Uri uri = Uri.parse(dir.string);
-                        DocumentFile root = DocumentFile.fromTreeUri(context, uri);
-                        if (root != null && root.isDirectory()) {
-                            String base = dir.getDisplayName();
-                            if (base == null) {
-                                base = safeName(root);
-                            }
-                            if (!processDocumentTree(root, base, request, callback,
-                                    fileCount, matchCount, allMatches)) {
-                                callback.onComplete(new SearchSummary(
-                                    request.query,
-                                    fileCount.get(),
-                                    matchCount.get(),
-                                    allMatches,
-                                    System.currentTimeMillis() - startTime
-                                ));
-                                return;
+                // Approximate matches need not contain any of the query's trigrams
+                List<List<String>> literals = request.fuzzy != null ? null : QueryLiterals.extract(
+                        request.query, request.prefs.mRegularExpression, 3);
+                try {
+                    for (CheckedString dir : request.prefs.mDirList) {
+                        if (cancelled.get()) {
+                            break;
+                        }
+
+                        if (dir.checked && dir.hasValue()) {
+                            Uri uri = Uri.parse(dir.string);
+                            DocumentEntry root = enumerator.queryRoot(uri);
+                            if (root != null && root.isDirectory()) {
+                                String base = dir.getDisplayName();
+                                if (base == null) {
+                                    base = safeName(root);
+                                }
+                                RootScan scan = new RootScan(uri, openRootIndex(uri, literals),
+                                        new File(resultDir, resultCacheName(uri, request)));
+                                roots.add(scan);
+                                workers.invoke(new DirectoryTask(scan, root, base, state));
                             }
                         }
                     }
+                } finally {
+                    state.traversalDone = true;
+                }
+
+                stagesDone = true;
+                awaitStages(stages, cancelled);
+                IOException failure = results.failure();
+                if (failure != null) {
+                    throw failure;
                 }
 
-                callback.onComplete(new SearchSummary(
-                    request.query,
-                    fileCount.get(),
-                    matchCount.get(),
-                    allMatches,
-                    System.currentTimeMillis() - startTime
-                ));
+                // A cancelled search reports nothing more; the next one may have started
+                if (!cancelled.get()) {
+                    callback.onComplete(new SearchSummary(
+                        request.query,
+                        fileCount.get(),
+                        matchCount.get(),
+                        results,
+                        System.currentTimeMillis() - startTime,
+                        state.cachedCount.get(),
+                        state.binarySkipped.get()
+                    ));
+                    completed = true;
+                }
             } catch (Exception e) {
+                cancelled.set(true);
                 callback.onError(e.getMessage() != null ? e.getMessage() : "Unknown error");
+            } finally {
+                if (!stagesDone) {
+                    // The stages use the roots' indexes and caches until they are done
+                    try {
+                        awaitStages(stages, cancelled);
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                    }
+                }
+                LoadedDocument pending;
+                while ((pending = state.loaded.poll()) != null) {
+                    pending.close();
+                }
+                for (RootScan scan : roots) {
+                    scan.finish(completed);
+                }
+                if (completed) {
+                    ResultCache.prune(resultDir, MAX_CACHED_RESULTS);
+                }
+                charsetCache.save();
             }
         });
     }
 
-    private boolean processDocumentTree(DocumentFile dir, String basePath, SearchRequest request,
-                                       ProgressCallback callback, AtomicInteger fileCount,
-                                       AtomicInteger matchCount, List<GrepView.Data> allMatches) {
-        if (cancelled.get()) {
-            return false;
+    /**
+     * Delete the spilled matches left by an earlier process. A store still reading them
+     * keeps its open files.
+     */
+    private static void deleteSpilledResults(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
         }
+    }
 
-        DocumentFile[] children = dir.listFiles();
-        if (children != null) {
-            for (DocumentFile child : children) {
-                if (cancelled.get()) {
-                    return false;
-                }
+    private RootIndex openRootIndex(Uri treeUri, List<List<String>> literals) {
+        String name = hashName(treeUri.toString());
+        File file = new File(indexDir, name);
+        TrigramIndex previous = TrigramIndex.open(file);
+        BitSet candidates = null;
+        if (previous != null) {
+            try {
+                candidates = previous.candidates(literals);
+            } catch (IOException e) {
+                e.printStackTrace();
+                previous.close();
+                previous = null;
+            }
+        }
+        try {
+            if (!indexDir.isDirectory() && !indexDir.mkdirs()) {
+                throw new IOException("Cannot create " + indexDir);
+            }
+            TrigramIndex.Writer writer = new TrigramIndex.Writer(
+                    new File(context.getCacheDir(), INDEX_DIR + "-" + name), previous);
+            return new RootIndex(file, previous, writer, candidates);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (previous != null) {
+                previous.close();
+            }
+            return null;
+        }
+    }
 
-                String childName = safeName(child);
-                String displayPath = basePath != null && !basePath.isEmpty()
-                    ? basePath + "/" + childName : childName;
+    /**
+     * @return Name of the result cache for a root and everything that decides what matches
+     */
+    private static String resultCacheName(Uri treeUri, SearchRequest request) {
+        int maxErrors = request.fuzzy != null ? request.prefs.mMaxErrors : 0;
+        return hashName(treeUri + "\n" + request.pattern.pattern() + "\n" + request.pattern.flags()
+                + "\n" + maxErrors + "\n" + request.prefs.mReportBinary);
+    }
 
-                boolean res;
-                if (child.isDirectory()) {
-                    res = processDocumentTree(child, displayPath, request, callback,
-                            fileCount, matchCount, allMatches);
-                } else {
-                    res = processDocument(child, displayPath, request, callback,
-                            fileCount, matchCount, allMatches);
-                }
+    /**
+     * @return A file name derived from {@code key}
+     */
+    private static String hashName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
 
-                if (!res) {
-                    return false;
+    /**
+     * Wait for the I/O and matcher stages to drain. An interrupt or a failed stage cancels
+     * the search, but the stages are still waited for: they use the roots' indexes and
+     * result caches, which are closed once this returns. They notice the flag on their own.
+     * @throws ExecutionException The first failure of a stage
+     */
+    private static void awaitStages(List<Future<?>> stages, AtomicBoolean cancelled)
+            throws ExecutionException {
+        ExecutionException failure = null;
+        boolean interrupted = false;
+        for (Future<?> stage : stages) {
+            while (true) {
+                try {
+                    stage.get();
+                    break;
+                } catch (ExecutionException e) {
+                    cancelled.set(true);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    break;
+                } catch (CancellationException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    cancelled.set(true);
+                    interrupted = true;
                 }
             }
         }
-        return true;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
-    private boolean processDocument(DocumentFile document, String displayPath, SearchRequest request,
-                                   ProgressCallback callback, AtomicInteger fileCount,
-                                   AtomicInteger matchCount, List<GrepView.Data> allMatches) {
-        if (cancelled.get()) {
-            return false;
+    /**
+     * State shared by all stages of one search.
+     */
+    private static final class ScanState {
+        final SearchRequest request;
+        final ProgressCallback callback;
+        final AtomicBoolean cancelled;
+        final AtomicInteger fileCount;
+        final AtomicInteger matchCount;
+        final ResultStore results;
+        final BlockingQueue<Candidate> candidates;
+        final BlockingQueue<LoadedDocument> loaded;
+        final AtomicInteger activeReaders;
+        final AtomicInteger cachedCount = new AtomicInteger(0);
+        final AtomicInteger binarySkipped = new AtomicInteger(0);
+        /** Byte-level form of the query per charset name, shared by the match workers. */
+        final Map<String, Optional<EncodedLiteral>> encodedLiterals = new ConcurrentHashMap<>();
+        volatile boolean traversalDone;
+        volatile boolean readDone;
+        /** When the next progress report is due, in {@link System#nanoTime()} */
+        final AtomicLong nextProgress = new AtomicLong(System.nanoTime() + PROGRESS_INTERVAL_NANOS);
+
+        ScanState(SearchRequest request, ProgressCallback callback, AtomicBoolean cancelled,
+                  AtomicInteger fileCount, AtomicInteger matchCount, ResultStore results,
+                  int ioThreads, int matchThreads) {
+            this.request = request;
+            this.callback = callback;
+            this.cancelled = cancelled;
+            this.fileCount = fileCount;
+            this.matchCount = matchCount;
+            this.results = results;
+            this.candidates = new ArrayBlockingQueue<>(CANDIDATE_QUEUE_CAPACITY);
+            // Loaded documents hold prefetched bytes or an open stream, so keep this queue short.
+            this.loaded = new ArrayBlockingQueue<>(2 * matchThreads);
+            this.activeReaders = new AtomicInteger(ioThreads);
         }
 
-        if (document == null) {
-            return true;
+        /**
+         * Add a batch of matches to the store. If the store cannot take them, the search
+         * stops, and reports the failure if there was one, so no match is silently lost.
+         */
+        void store(ResultStore.Batch batch) {
+            if (!results.add(batch)) {
+                cancelled.set(true);
+            }
         }
 
-        String name = safeName(document);
-        if (!matchesExtension(name, request.prefs)) {
-            return true;
+        /**
+         * @return true if a progress report is due; cheap enough to ask for every match
+         */
+        boolean progressDue() {
+            return System.nanoTime() - nextProgress.get() >= 0;
         }
 
-        InputStream is = null;
-        BufferedReader br = null;
-        try {
-            is = new BufferedInputStream(contentResolver.openInputStream(document.getUri()), 65536);
-            is.mark(65536);
+        /**
+         * Report the counts and stored matches if a report is due, or at once if {@code now}.
+         * Of the threads that get here at the same time, only one reports, so the number of
+         * reports depends on how long the search takes, not on how much it finds. Nothing is
+         * reported once the search is cancelled.
+         */
+        void publishProgress(boolean now) {
+            if (cancelled.get()) {
+                return;
+            }
+            long due = nextProgress.get();
+            long time = System.nanoTime();
+            if (!now && time - due < 0) {
+                return;
+            }
+            if (!nextProgress.compareAndSet(due, time + PROGRESS_INTERVAL_NANOS)) {
+                return;
+            }
+            callback.onProgress(new SearchProgress(request.query, fileCount.get(), matchCount.get(), results));
+        }
+    }
 
-            // Detect character encoding
-            String encode;
-            UniversalDetector detector = new UniversalDetector(null);
+    /**
+     * The trigram index of one root: the previous index used to skip documents, and the
+     * writer collecting the next one.
+     */
+    private static final class RootIndex {
+        final File file;
+        final TrigramIndex previous;
+        final TrigramIndex.Writer writer;
+        /** Previous ordinals that may match the query, or null if all may. */
+        final BitSet candidates;
+        volatile boolean failed;
+
+        RootIndex(File file, TrigramIndex previous, TrigramIndex.Writer writer, BitSet candidates) {
+            this.file = file;
+            this.previous = previous;
+            this.writer = writer;
+            this.candidates = candidates;
+        }
+
+        static boolean isIndexable(DocumentEntry entry) {
+            return entry.size >= 0 && entry.lastModified > 0;
+        }
+
+        /**
+         * Carry a document over into the next index if it is unchanged since it was indexed.
+         * @return Its previous ordinal, or -1 if it has to be scanned and indexed again
+         */
+        int carryOverIfUnchanged(DocumentEntry entry) {
+            if (previous == null || !isIndexable(entry)) {
+                return -1;
+            }
+            int ordinal = previous.ordinalOf(entry.documentId);
+            if (ordinal < 0 || !previous.isFresh(ordinal, entry.size, entry.lastModified)) {
+                return -1;
+            }
+            writer.carryOver(ordinal);
+            return ordinal;
+        }
+
+        boolean mayMatch(int ordinal) {
+            return candidates == null || candidates.get(ordinal);
+        }
+
+        void add(DocumentEntry entry, TrigramIndex.Collector collector) {
+            if (!isIndexable(entry)) {
+                return;
+            }
             try {
-                int nread;
-                byte[] buff = new byte[4096];
-                if ((nread = is.read(buff)) > 0) {
-                    detector.handleData(buff, 0, nread);
+                writer.addDocument(entry.documentId, entry.size, entry.lastModified, collector);
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true;
+            }
+        }
+
+        void finish(boolean commit) {
+            try {
+                if (commit && !failed && writer.hasChanges()) {
+                    writer.commit(file);
+                } else {
+                    writer.abort();
                 }
-                detector.dataEnd();
-                encode = detector.getDetectedCharset();
-                detector.reset();
-            } catch (FileNotFoundException e) {
+            } catch (IOException e) {
                 e.printStackTrace();
-                return true;
+            } finally {
+                if (previous != null) {
+                    previous.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything a search keeps per root: its trigram index and its cached results.
+     */
+    private static final class RootScan {
+        final Uri treeUri;
+        /** Null if the index could not be opened. */
+        final RootIndex index;
+        final File resultFile;
+        final ResultCache results;
+
+        RootScan(Uri treeUri, RootIndex index, File resultFile) {
+            this.treeUri = treeUri;
+            this.index = index;
+            this.resultFile = resultFile;
+            this.results = ResultCache.load(resultFile, MAX_CACHED_MATCHES);
+        }
+
+        void finish(boolean completed) {
+            if (index != null) {
+                index.finish(completed);
+            }
+            if (!completed) {
+                return;
+            }
+            if (results.isOverflowed()) {
+                resultFile.delete();
+                return;
+            }
+            try {
+                results.save(resultFile);
             } catch (IOException e) {
                 e.printStackTrace();
-                return true;
             }
-            is.reset();
+        }
+    }
+
+    /**
+     * A document that passed the traversal filters.
+     */
+    private static final class Candidate {
+        final DocumentEntry entry;
+        final String displayPath;
+        final RootScan root;
+        /** Whether to add the document's trigrams to the root's index. */
+        final boolean collectTrigrams;
+        /** Stored matches of an unchanged document, reported without opening it, or null */
+        final ResultCache.Document cached;
 
-            if (encode != null) {
-                br = new BufferedReader(new InputStreamReader(is, encode), 8192);
+        Candidate(DocumentEntry entry, String displayPath, RootScan root, boolean collectTrigrams,
+                  ResultCache.Document cached) {
+            this.entry = entry;
+            this.displayPath = displayPath;
+            this.root = root;
+            this.collectTrigrams = collectTrigrams;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * An opened document with its detected charset, ready for the matcher stage. Small documents
+     * are fully prefetched into {@code content}; larger ones are mapped into memory if they are
+     * local files, or keep their buffered stream open.
+     */
+    private static final class LoadedDocument implements Closeable {
+        final Candidate candidate;
+        final String charset;
+        /** The whole document, or its head if {@link #stream} has the rest */
+        final byte[] content;
+        final int length;
+        final InputStream stream;
+        /** The whole document mapped into memory, or null */
+        final ByteBuffer mapped;
+        /** Reported as a whole on its first match, like GNU grep's "Binary file matches" */
+        final boolean binary;
+
+        LoadedDocument(Candidate candidate, String charset, byte[] content, int length, InputStream stream,
+                       ByteBuffer mapped, boolean binary) {
+            this.candidate = candidate;
+            this.charset = charset;
+            this.content = content;
+            this.length = length;
+            this.stream = stream;
+            this.mapped = mapped;
+            this.binary = binary;
+        }
+
+        /**
+         * Start the scanner on this document.
+         */
+        void open(DocumentScanner scanner) {
+            if (mapped != null) {
+                scanner.reset(charset, mapped);
             } else {
-                br = new BufferedReader(new InputStreamReader(is), 8192);
+                scanner.reset(charset, content, length, stream);
             }
+        }
 
-            String text;
-            int line = 0;
-            boolean found = false;
-            Pattern pattern = request.pattern;
-            Matcher m = null;
-            List<GrepView.Data> batch = new ArrayList<>();
+        @Override
+        public void close() {
+            closeQuietly(stream);
+        }
+    }
 
-            int currentFileCount = fileCount.incrementAndGet();
+    /**
+     * Lists one directory, forking a task per subdirectory and queueing candidate documents;
+     * idle workers steal the forked tasks.
+     */
+    private final class DirectoryTask extends RecursiveAction {
+        private final RootScan root;
+        private final DocumentEntry dir;
+        private final String basePath;
+        private final ScanState state;
 
-            while ((text = br.readLine()) != null) {
-                if (cancelled.get()) {
-                    break;
+        DirectoryTask(RootScan root, DocumentEntry dir, String basePath, ScanState state) {
+            this.root = root;
+            this.dir = dir;
+            this.basePath = basePath;
+            this.state = state;
+        }
+
+        @Override
+        protected void compute() {
+            if (state.cancelled.get()) {
+                return;
+            }
+
+            List<DocumentEntry> children = enumerator.listChildren(root.treeUri, dir.documentId);
+            List<RecursiveAction> subtasks = new ArrayList<>();
+            for (DocumentEntry child : children) {
+                if (state.cancelled.get()) {
+                    return;
                 }
 
-                line++;
-                if (m == null) {
-                    m = pattern.matcher(text);
-                } else {
-                    m.reset(text);
+                String childName = safeName(child);
+                String displayPath = basePath != null && !basePath.isEmpty()
+                    ? basePath + "/" + childName : childName;
+
+                if (child.isDirectory()) {
+                    subtasks.add(new DirectoryTask(root, child, displayPath, state));
+                } else if (matchesExtension(childName, state.request.prefs)
+                        && CandidateFilter.accepts(child, state.request.prefs)) {
+                    RootIndex index = root.index;
+                    boolean collectTrigrams = index != null;
+                    if (index != null) {
+                        int ordinal = index.carryOverIfUnchanged(child);
+                        if (ordinal >= 0) {
+                            if (!index.mayMatch(ordinal)) {
+                                // Searched through the index without opening it
+                                state.fileCount.incrementAndGet();
+                                state.publishProgress(false);
+                                continue;
+                            }
+                            collectTrigrams = false;
+                        }
+                    }
+                    // Cached matches go through the read stage too, which may wait for the UI
+                    ResultCache.Document cached = root.results.lookup(
+                            child.documentId, child.size, child.lastModified);
+                    Candidate candidate = new Candidate(child, displayPath, root, collectTrigrams, cached);
+                    if (!handOff(state.candidates, candidate, state.cancelled)) {
+                        return;
+                    }
+                }
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * Report the stored matches of an unchanged document without opening it.
+     */
+    private static void reportCached(Candidate candidate, ScanState state) {
+        ResultCache.Document cached = candidate.cached;
+        candidate.root.results.record(cached);
+        state.fileCount.incrementAndGet();
+        state.cachedCount.incrementAndGet();
+        int count = cached.matchCount();
+        if (count == 0) {
+            state.publishProgress(false);
+            return;
+        }
+        ResultStore.Batch batch = new ResultStore.Batch(
+                state.results.addFile(candidate.entry.uri, candidate.displayPath));
+        LiteralSearch literal = state.request.literal;
+        Matcher highlighter = literal == null ? state.request.pattern.matcher("") : null;
+        for (int i = 0; i < count; i++) {
+            String text = cached.texts[i];
+            batch.add(cached.lines[i], text, cached.errors[i], cached.offsets[i],
+                    MatchRanges.find(text, literal, highlighter));
+        }
+        state.store(batch);
+        // The first matches of the search are shown at once
+        state.publishProgress(state.matchCount.addAndGet(count) == count);
+        state.results.awaitDemand(state.cancelled);
+    }
+
+    /**
+     * Blocks until the queue accepts the item.
+     * @return false if the search was cancelled first
+     */
+    private static <T> boolean handOff(BlockingQueue<T> queue, T item, AtomicBoolean cancelled) {
+        try {
+            while (!cancelled.get()) {
+                if (queue.offer(item, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the next queued item.
+     * @return The item, or null once the upstream stage is done and the queue is drained,
+     *         or the search was cancelled
+     */
+    private static <T> T takeNext(BlockingQueue<T> queue, BooleanSupplier upstreamDone,
+                                  AtomicBoolean cancelled) throws InterruptedException {
+        while (!cancelled.get()) {
+            T item = queue.poll(QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
+            }
+            if (upstreamDone.getAsBoolean() && queue.isEmpty()) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void runReadStage(ScanState state) {
+        try {
+            Candidate candidate;
+            while ((candidate = takeNext(state.candidates, () -> state.traversalDone, state.cancelled)) != null) {
+                if (candidate.cached != null) {
+                    reportCached(candidate, state);
+                    continue;
+                }
+                LoadedDocument document = loadDocument(candidate, state);
+                if (document != null && !handOff(state.loaded, document, state.cancelled)) {
+                    document.close();
                 }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (state.activeReaders.decrementAndGet() == 0) {
+                state.readDone = true;
+            }
+        }
+    }
+
+    private void runMatchStage(ScanState state) {
+        DocumentScanner scanner = new DocumentScanner();
+        try {
+            LoadedDocument document;
+            while ((document = takeNext(state.loaded, () -> state.readDone, state.cancelled)) != null) {
+                try {
+                    processDocument(document, state, scanner);
+                } finally {
+                    document.close();
+                    scanner.trim();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                if (m.find()) {
-                    found = true;
-                    int currentMatchCount = matchCount.incrementAndGet();
-
-                    GrepView.Data data = new GrepView.Data(document.getUri(), displayPath, line, text);
-                    batch.add(data);
-                    allMatches.add(data);
-
-                    // Send progress updates for first 10 matches
-                    if (currentMatchCount < 10) {
-                        callback.onProgress(new SearchProgress(
-                            request.query,
-                            currentFileCount,
-                            currentMatchCount,
-                                new ArrayList<>(batch)
-                        ));
-                        batch.clear();
+    /**
+     * Open a candidate, detect its charset and prefetch its bytes.
+     * @return The loaded document, or null if it cannot be read or is a binary to skip
+     */
+    private LoadedDocument loadDocument(Candidate candidate, ScanState state) {
+        InputStream raw = null;
+        try {
+            if (candidate.entry.size > PREFETCH_LIMIT) {
+                ByteBuffer mapped = map(candidate.entry.uri);
+                if (mapped != null) {
+                    // Only the head is copied, for detection
+                    byte[] head = new byte[Math.min(mapped.remaining(), SNIFF_SIZE)];
+                    mapped.duplicate().get(head);
+                    String encode = detectCharset(candidate, head, head.length);
+                    boolean binary = BinarySniffer.isBinary(head, head.length, encode);
+                    if (binary && skipBinary(state)) {
+                        return null;
+                    }
+                    return new LoadedDocument(candidate, encode, head, head.length, null, mapped, binary);
+                }
+            }
+            raw = contentResolver.openInputStream(candidate.entry.uri);
+            if (raw == null) {
+                return null;
+            }
+
+            long size = candidate.entry.size;
+            if (size >= 0 && size <= PREFETCH_LIMIT) {
+                byte[] content = new byte[(int) size + 1];
+                int length = 0;
+                int nread;
+                while ((nread = raw.read(content, length, content.length - length)) > 0) {
+                    length += nread;
+                    if (length == content.length) {
+                        // The provider under-reported the size; keep reading
+                        content = Arrays.copyOf(content, content.length * 2);
                     }
                 }
+                raw.close();
+                int sniffed = Math.min(length, SNIFF_SIZE);
+                String encode = detectCharset(candidate, content, sniffed);
+                boolean binary = BinarySniffer.isBinary(content, sniffed, encode);
+                if (binary && skipBinary(state)) {
+                    return null;
+                }
+                return new LoadedDocument(candidate, encode, content, length, null, null, binary);
+            }
+
+            // The sniffed head is decoded first, then the rest of the stream
+            byte[] head = new byte[SNIFF_SIZE];
+            int length = 0;
+            int nread;
+            while (length < head.length && (nread = raw.read(head, length, head.length - length)) > 0) {
+                length += nread;
+            }
+            String encode = detectCharset(candidate, head, length);
+            boolean binary = BinarySniffer.isBinary(head, length, encode);
+            if (binary && skipBinary(state)) {
+                raw.close();
+                return null;
             }
+            return new LoadedDocument(candidate, encode, head, length, raw, null, binary);
+        } catch (IOException | SecurityException e) {
+            e.printStackTrace();
+            closeQuietly(raw);
+            return null;
+        }
+    }
 
-            // Send remaining batch
-            if (!batch.isEmpty()) {
-                callback.onProgress(new SearchProgress(
-                    request.query,
-                    currentFileCount,
-                    matchCount.get(),
-                        new ArrayList<>(batch)
-                ));
+    /**
+     * Map a document of a local storage provider into memory, so the matcher stage scans
+     * it in place instead of copying it through heap buffers.
+     * @return The mapping, or null if the document has to be streamed, such as when the
+     *         provider hands out a pipe
+     */
+    private ByteBuffer map(Uri uri) {
+        if (!LOCAL_AUTHORITIES.contains(uri.getAuthority())) {
+            return null;
+        }
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = contentResolver.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return null;
+            }
+            long size = pfd.getStatSize();
+            if (size <= 0 || size > Integer.MAX_VALUE) {
+                // Not a regular file, or too large for one mapping
+                return null;
+            }
+            try (FileInputStream fis = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+                pfd = null;
+                FileChannel channel = fis.getChannel();
+                // The mapping stays valid after the descriptor is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
             }
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            // Fall back to the provider's stream
+            return null;
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
 
-            // Send periodic progress updates for files without matches
-            if (!found && currentFileCount % 10 == 0) {
-                callback.onProgress(new SearchProgress(
-                    request.query,
-                    currentFileCount,
-                    matchCount.get(),
-                    Collections.emptyList()
-                ));
+    /**
+     * @return true if binary documents are skipped rather than reported, counting the skip
+     */
+    private static boolean skipBinary(ScanState state) {
+        if (state.request.prefs.mReportBinary) {
+            return false;
+        }
+        state.binarySkipped.incrementAndGet();
+        return true;
+    }
+
+    private String detectCharset(Candidate candidate, byte[] sample, int length) {
+        DocumentEntry entry = candidate.entry;
+        return charsetCache.detect(entry.uri.toString(), entry.size, entry.lastModified, sample, length);
+    }
+
+    private void processDocument(LoadedDocument document, ScanState state, DocumentScanner scanner) {
+        if (state.cancelled.get()) {
+            return;
+        }
+
+        // A binary document is only scanned up to its first match, too little to index
+        RootIndex index = document.candidate.collectTrigrams && !document.binary
+            ? document.candidate.root.index : null;
+
+        try {
+            // Collecting trigrams needs every line decoded anyway
+            EncodedLiteral encoded = index == null ? encodedLiteral(document.charset, state) : null;
+            SearchRequest request = state.request;
+            DocumentMatches matches = new DocumentMatches(document, state, scanner);
+            document.open(scanner);
+            if (encoded != null) {
+                scanner.scanEncoded(request, encoded, matches);
+            } else if (request.fuzzy == null && (request.literal != null || request.windowPattern != null)) {
+                scanner.scanWindows(request, index != null, matches);
+            } else {
+                scanner.scanLines(request, index != null, matches);
             }
 
+            if (!state.cancelled.get()) {
+                if (index != null) {
+                    index.add(document.candidate.entry, scanner.collector);
+                }
+                matches.flush();
+                matches.record();
+            }
+            matches.finish();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
+        }
+    }
+
+    private static EncodedLiteral encodedLiteral(String charsetName, ScanState state) {
+        SearchRequest request = state.request;
+        List<String> literals = request.requiredLiterals;
+        // Each literal is one more pass over the bytes; past a few, decoding is cheaper
+        if (request.fuzzy != null || literals == null || literals.size() > MAX_ENCODED_LITERALS) {
+            return null;
+        }
+        return state.encodedLiterals.computeIfAbsent(charsetName != null ? charsetName : "", name -> {
+            Charset charset = DocumentScanner.charsetFor(charsetName);
+            return Optional.ofNullable(charset != null
+                ? EncodedLiteral.create(literals, request.prefs.mIgnoreCase, charset)
+                : null);
+        }).orElse(null);
+    }
+
+    /**
+     * Collects the matches of one document and adds them to the result store in batches,
+     * so each batch takes its place in the order at once. A batch is added when it is full,
+     * at the end of the document, and whenever progress is reported: at once for the first
+     * match of the search, then at most every {@link #PROGRESS_INTERVAL_NANOS}.
+     */
+    private final class DocumentMatches implements DocumentScanner.Sink {
+        final ScanState state;
+        final Uri uri;
+        final String displayPath;
+        final boolean binary;
+        final DocumentScanner scanner;
+        final Candidate candidate;
+        /**
+         * The document's matches, null until it first matches. Those added to the result
+         * store are dropped, unless they are kept for the result cache.
+         */
+        ResultStore.Batch batch;
+        /** Set while the matches may still be recorded in the root's result cache */
+        boolean recording;
+        /** Set once a binary document has matched; the rest of it need not be scanned */
+        boolean stopped;
+
+        DocumentMatches(LoadedDocument document, ScanState state, DocumentScanner scanner) {
+            this.state = state;
+            this.scanner = scanner;
+            this.candidate = document.candidate;
+            this.uri = document.candidate.entry.uri;
+            this.displayPath = document.candidate.displayPath;
+            this.binary = document.binary;
+            this.recording = !candidate.root.results.isOverflowed();
+            state.fileCount.incrementAndGet();
+        }
+
+        @Override
+        public boolean isStopped() {
+            return stopped || state.cancelled.get();
+        }
+
+        @Override
+        public void add(int line, CharSequence text, int hitStart, int textOffset, int errors) {
+            if (stopped) {
+                return;
+            }
+            String kept;
+            int[] ranges = null;
+            if (binary) {
+                kept = context.getString(R.string.binary_file_matches);
+                stopped = true;
+            } else {
+                // Only a bounded snippet of a long line is kept
+                kept = LineSnippet.of(text, hitStart);
+                // Found here once, so the result list never runs the pattern
+                LiteralSearch literal = state.request.literal;
+                ranges = MatchRanges.find(kept, literal,
+                        literal == null ? scanner.highlighter(state.request.pattern) : null);
+            }
+            int currentMatchCount = state.matchCount.incrementAndGet();
+
+            if (batch == null) {
+                batch = new ResultStore.Batch(state.results.addFile(uri, displayPath));
+            }
+            batch.add(line, kept, errors, textOffset + hitStart, ranges);
+            if (currentMatchCount == 1 || state.progressDue()) {
+                flush();
+                state.publishProgress(currentMatchCount == 1);
+            } else if (batch.unstored() >= MAX_BATCH) {
+                flush();
+            } else {
+                return;
+            }
+            // Wait here while the list is too far behind
+            state.results.awaitDemand(state.cancelled);
+        }
+
+        /**
+         * Add the collected matches to the result store. Once they are too many for the
+         * result cache, the root's cache is dropped, and the stored matches with it.
+         */
+        void flush() {
+            if (batch == null || batch.unstored() == 0) {
+                return;
+            }
+            state.store(batch);
+            if (recording && !candidate.root.results.canRecord(batch.size())) {
+                candidate.root.results.overflow();
+                recording = false;
+            }
+            if (!recording) {
+                batch.clear();
+            }
+        }
+
+        /**
+         * Record the document's matches in the root's result cache, if it takes them.
+         */
+        void record() {
+            if (!recording) {
+                return;
+            }
+            int count = batch != null ? batch.size() : 0;
+            int[] lines = new int[count];
+            String[] texts = new String[count];
+            int[] errors = new int[count];
+            int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                lines[i] = batch.line(i);
+                texts[i] = batch.text(i).toString();
+                errors[i] = batch.errors(i);
+                offsets[i] = batch.offset(i);
+            }
+            DocumentEntry entry = candidate.entry;
+            candidate.root.results.record(new ResultCache.Document(
+                    entry.documentId, entry.size, entry.lastModified, lines, texts, errors, offsets));
+        }
+
+        void finish() {
+            flush();
+            state.publishProgress(false);
+            state.results.awaitDemand(state.cancelled);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
             try {
-                if (br != null) {
-                    br.close();
-                }
-                if (is != null) {
-                    is.close();
-                }
+                closeable.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-
-        return true;
     }
 
-    private String safeName(DocumentFile file) {
+    private String safeName(DocumentEntry file) {
         if (file == null) {
             return "";
         }
-        String name = file.getName();
+        String name = file.displayName;
         if (name == null) {
-            Uri uri = file.getUri();
-            name = uri.getLastPathSegment();
+            name = file.uri.getLastPathSegment();
         }
         return name != null ? name : "";
     }
@@ -314,5 +1124,7 @@ public class ExecutorGrepEngine implements GrepEngine {
     public void shutdown() {
         cancel();
         executor.shutdown();
+        workers.shutdown();
+        stageExecutor.shutdown();
     }
 }
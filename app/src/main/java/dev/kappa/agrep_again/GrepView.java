@@ -2,23 +2,31 @@ package dev.kappa.agrep_again;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.regex.Pattern;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
-import android.graphics.Color;
 import android.net.Uri;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
 import android.util.AttributeSet;
+import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-public class GrepView extends ListView {
+public class GrepView extends RecyclerView {
 
     static class Data implements Comparator<Data> {
 
@@ -26,16 +34,40 @@ public class GrepView extends ListView {
         public String mDisplayName;
         public int mLinenumber;
         public CharSequence mText;
+        /** Edit distance of an approximate match, 0 for an exact one. */
+        public int mErrors;
+        /** Offset of the hit in its line; {@link #mText} may be a snippet around it. */
+        public int mOffset;
+        /** Start and end of each match in {@link #mText}, in pairs, or null. */
+        public int[] mRanges;
+        /** Identifies the match within its search; stays the same wherever it is shown. */
+        public long mId;
 
         public Data(){
             this(null, null, 0, null);
         }
 
         public Data(Uri uri, String displayName, int linenumber, CharSequence text){
+            this(uri, displayName, linenumber, text, 0);
+        }
+
+        public Data(Uri uri, String displayName, int linenumber, CharSequence text, int errors){
+            this(uri, displayName, linenumber, text, errors, 0);
+        }
+
+        public Data(Uri uri, String displayName, int linenumber, CharSequence text, int errors, int offset){
+            this(uri, displayName, linenumber, text, errors, offset, null);
+        }
+
+        public Data(Uri uri, String displayName, int linenumber, CharSequence text, int errors, int offset,
+                    int[] ranges){
             mUri = uri;
             mDisplayName = displayName;
             mLinenumber = linenumber;
             mText = text;
+            mErrors = errors;
+            mOffset = offset;
+            mRanges = ranges;
         }
 
         @Override
@@ -57,29 +89,16 @@ public class GrepView extends ListView {
     }
 
     private Callback mCallback;
+    private boolean mRefreshPending;
 
     private void init(Context context)
     {
-        setSmoothScrollbarEnabled(true);
-        setScrollingCacheEnabled(true);
+        setLayoutManager(new LinearLayoutManager(context));
+        setHasFixedSize(true);
         setFocusable(true);
         setFocusableInTouchMode(true);
-        setFastScrollEnabled(true);
         setBackgroundColor(ContextCompat.getColor(context, R.color.color_background));
-        setCacheColorHint(ContextCompat.getColor(context, R.color.color_background));
-        setDividerHeight(2);
-        setOnItemClickListener((parent, view, position, id) -> {
-            if (mCallback != null) {
-                mCallback.onGrepItemClicked(position);
-            }
-        });
-        setOnItemLongClickListener((parent, view, position, id) -> {
-            if (mCallback != null) {
-                return mCallback.onGrepItemLongClicked(position);
-            }
-            return false;
-        });
-
+        addItemDecoration(new DividerItemDecoration(context, DividerItemDecoration.VERTICAL));
     }
 
     public GrepView(Context context) {
@@ -100,6 +119,17 @@ public class GrepView extends ListView {
     public void setCallback( Callback cb )
     {
         mCallback = cb;
+        if (getAdapter() instanceof GrepAdapter) {
+            ((GrepAdapter) getAdapter()).setCallback(cb);
+        }
+    }
+
+    @Override
+    public void setAdapter(Adapter adapter) {
+        super.setAdapter(adapter);
+        if (adapter instanceof GrepAdapter) {
+            ((GrepAdapter) adapter).setCallback(mCallback);
+        }
     }
 
     @Override
@@ -109,64 +139,272 @@ public class GrepView extends ListView {
         return super.onTouchEvent(ev);
     }
 
+    /**
+     * Show the rows added to the results on the next frame. However often this is called,
+     * the list is updated at most once per frame, by at most a frame's worth of rows, until
+     * it shows them all. New rows take their places in the order; the rows in view stay
+     * put, unless the list is at its top, where it stays.
+     */
+    public void refreshOnNextFrame() {
+        if (mRefreshPending) {
+            return;
+        }
+        mRefreshPending = true;
+        postOnAnimation(() -> {
+            mRefreshPending = false;
+            Adapter<?> adapter = getAdapter();
+            if (adapter instanceof GrepAdapter) {
+                LayoutManager layout = getLayoutManager();
+                boolean atTop = adapter.getItemCount() == 0 || layout instanceof LinearLayoutManager
+                        && ((LinearLayoutManager) layout).findFirstVisibleItemPosition() <= 0;
+                GrepAdapter grepAdapter = (GrepAdapter) adapter;
+                grepAdapter.refresh();
+                if (atTop) {
+                    scrollToPosition(0);
+                }
+                if (grepAdapter.hasMore()) {
+                    refreshOnNextFrame();
+                }
+            }
+        });
+    }
 
-    static class GrepAdapter extends ArrayAdapter<Data>
+    /**
+     * Shows the rows of a {@link ResultStore} in order. The store grows while the search
+     * runs; the adapter shows a {@link ResultStore.Snapshot} taken at the last
+     * {@link #refresh()}, which adds at most {@link #FRAME_ROWS} rows, and announces the
+     * rows added as ranges inserted among the others, so the list never has to be sorted or
+     * reshuffled. Taking the rows lets a search waiting for the list go on.
+     *
+     * <p>Rows are read from the store a page of rows at a time and kept in a small LRU,
+     * so scrolling through matches spilled to disk reads each page once. Highlights are set
+     * from the match ranges the engine recorded, and the highlighted text of recent rows
+     * is kept too, so binding a row never runs the pattern. A row keeps its place in the
+     * store, so neither cache is cleared when rows are inserted.</p>
+     */
+    static class GrepAdapter extends RecyclerView.Adapter<GrepAdapter.ViewHolder>
     {
-
-        private Pattern mPattern;
+        private static final int PAGE_SIZE = 64;
+        private static final int MAX_PAGES = 16;
+        private static final int MAX_HIGHLIGHTED = 128;
+        /** Most rows added to the list by one refresh. */
+        private static final int FRAME_ROWS = 4096;
+        /** More inserted ranges than this are announced as a change of all rows. */
+        private static final int MAX_INSERTED_RANGES = 64;
+
+        private final Context mContext;
+        private Callback mCallback;
+        private ResultStore mResults;
+        private ResultStore.Snapshot mShown;
+        private final LinkedHashMap<Integer, Data[]> mPages =
+                new LinkedHashMap<Integer, Data[]>(MAX_PAGES, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, Data[]> eldest) {
+                        return size() > MAX_PAGES;
+                    }
+                };
+        private final LinkedHashMap<Integer, SpannableString> mHighlighted =
+                new LinkedHashMap<Integer, SpannableString>(MAX_HIGHLIGHTED, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, SpannableString> eldest) {
+                        return size() > MAX_HIGHLIGHTED;
+                    }
+                };
         private int mFgColor;
         private int mBgColor;
         private int mFontSize;
 
 
-        static  class ViewHolder {
-            TextView Index;
-            TextView kwic;
+        static class ViewHolder extends RecyclerView.ViewHolder {
+            final TextView Index;
+            final TextView kwic;
+
+            ViewHolder(View view) {
+                super(view);
+                Index = view.findViewById(R.id.ListIndex);
+                kwic = view.findViewById(R.id.ListPhone);
+            }
         }
 
 
-        public GrepAdapter(Context context, int resource, int textViewResourceId, ArrayList<Data> objects)
+        public GrepAdapter(Context context)
         {
-            super(context, resource, textViewResourceId, objects);
+            mContext = context;
+            setHasStableIds(true);
         }
 
-        @NonNull
-        @Override
-        public View getView(int position, View convertView, @NonNull ViewGroup parent)
-        {
-            final View view;
-            ViewHolder holder;
-            if ( convertView != null ) {
-                view = convertView;
-                holder = (ViewHolder) view.getTag();
+        public void setCallback(Callback cb) {
+            mCallback = cb;
+        }
 
-            } else {
-                view = inflate(getContext() , R.layout.list_row , null );
+        /**
+         * Show the rows of {@code results}, or none if it is null.
+         */
+        public void setResults(ResultStore results) {
+            mResults = results;
+            mShown = mResults != null ? mResults.next(null, FRAME_ROWS) : null;
+            mPages.clear();
+            mHighlighted.clear();
+            notifyDataSetChanged();
+        }
 
-                holder = new ViewHolder();
-                holder.Index = view.findViewById(R.id.ListIndex);
-                holder.kwic = view.findViewById(R.id.ListPhone);
+        /**
+         * Show up to {@link #FRAME_ROWS} of the rows added to the store since the last call,
+         * each in its place.
+         */
+        public void refresh() {
+            if (mResults == null) {
+                return;
+            }
+            ResultStore.Snapshot older = mShown;
+            ResultStore.Snapshot newer = mResults.next(older, FRAME_ROWS);
+            if (newer == older) {
+                return;
+            }
+            // A page read before the store filled it has to be read again
+            Iterator<Data[]> pages = mPages.values().iterator();
+            while (pages.hasNext()) {
+                Data[] page = pages.next();
+                if (page.length < PAGE_SIZE) {
+                    pages.remove();
+                }
+            }
+            final List<int[]> inserted = new ArrayList<>();
+            newer.forEachAdded(older, (start, count) -> {
+                if (inserted.size() <= MAX_INSERTED_RANGES) {
+                    inserted.add(new int[]{start, count});
+                }
+            });
+            mShown = newer;
+            if (inserted.size() > MAX_INSERTED_RANGES) {
+                notifyDataSetChanged();
+                return;
+            }
+            // In ascending order, each range is at its final position once those before it are in
+            for (int[] range : inserted) {
+                notifyItemRangeInserted(range[0], range[1]);
+            }
+        }
+
+        /**
+         * @return true if the store has rows that are not shown yet
+         */
+        public boolean hasMore() {
+            return mShown != null && mShown.size() < mResults.size();
+        }
 
-                holder.Index.setTextColor(ContextCompat.getColor(getContext(), R.color.color_on_background));
-                holder.kwic.setTextColor(ContextCompat.getColor(getContext(), R.color.color_on_background));
+        /**
+         * @return The results shown, or null
+         */
+        public ResultStore getResults() {
+            return mResults;
+        }
+
+        private Context getContext() {
+            return mContext;
+        }
 
-                holder.Index.setTextSize(mFontSize);
-                holder.kwic.setTextSize(mFontSize);
+        @Override
+        public int getItemCount() {
+            return mShown != null ? mShown.size() : 0;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            // The row, which a match keeps wherever it is shown
+            return mShown.rowAt(position);
+        }
 
-                view.setTag(holder);
+        public Data getItem(int position) {
+            int row = mShown.rowAt(position);
+            int first = row - row % PAGE_SIZE;
+            Data[] page = mPages.get(first);
+            if (page == null) {
+                page = new Data[Math.max(0, Math.min(PAGE_SIZE, mResults.size() - first))];
+                int read = mResults.readRows(first, page);
+                if (read <= row - first) {
+                    // Closed or unreadable; show a blank row rather than fail
+                    Data blank = new Data(null, null, 0, "");
+                    blank.mId = row;
+                    return blank;
+                }
+                if (read < page.length) {
+                    return page[row - first];
+                }
+                mPages.put(first, page);
             }
+            return page[row - first];
+        }
+
+        @NonNull
+        @Override
+        public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType)
+        {
+            View view = LayoutInflater.from(getContext()).inflate(R.layout.list_row, parent, false);
+            ViewHolder holder = new ViewHolder(view);
+
+            holder.Index.setTextColor(ContextCompat.getColor(getContext(), R.color.color_on_background));
+            holder.kwic.setTextColor(ContextCompat.getColor(getContext(), R.color.color_on_background));
+
+            holder.Index.setTextSize(mFontSize);
+            holder.kwic.setTextSize(mFontSize);
+
+            view.setOnClickListener(v -> {
+                int position = holder.getBindingAdapterPosition();
+                if (mCallback != null && position != RecyclerView.NO_POSITION) {
+                    mCallback.onGrepItemClicked(position);
+                }
+            });
+            view.setOnLongClickListener(v -> {
+                int position = holder.getBindingAdapterPosition();
+                if (mCallback != null && position != RecyclerView.NO_POSITION) {
+                    return mCallback.onGrepItemLongClicked(position);
+                }
+                return false;
+            });
+            return holder;
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position)
+        {
             Data d = getItem(position);
 
             String baseName = d.mDisplayName != null ? d.mDisplayName : "";
             String fname = baseName + "(" + d.mLinenumber + ")";
+            if (d.mErrors > 0) {
+                fname += getContext().getString(R.string.label_match_errors, d.mErrors);
+            }
             holder.Index.setText(fname);
-            holder.kwic.setText( Search.highlightKeyword(d.mText, mPattern, mFgColor , mBgColor ) );
+            int row = (int) d.mId;
+            SpannableString text = mHighlighted.get(row);
+            if (text == null) {
+                text = highlight(d);
+                mHighlighted.put(row, text);
+            }
+            holder.kwic.setText(text);
+        }
 
-            return view;
+        private SpannableString highlight(Data d) {
+            SpannableString ss = new SpannableString(d.mText);
+            int[] ranges = d.mRanges;
+            if (ranges != null) {
+                int length = ss.length();
+                for (int i = 0; i + 1 < ranges.length; i += 2) {
+                    int start = ranges[i];
+                    int end = Math.min(ranges[i + 1], length);
+                    if (start < 0 || start >= end) {
+                        continue;
+                    }
+                    ss.setSpan(new BackgroundColorSpan(mBgColor), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    ss.setSpan(new ForegroundColorSpan(mFgColor), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+            return ss;
         }
 
-        public void setFormat(Pattern pattern, int fgcolor, int bgcolor, int size) {
-            mPattern = pattern;
+        public void setFormat(int fgcolor, int bgcolor, int size) {
+            mHighlighted.clear();
             mFgColor = fgcolor;
             mBgColor = bgcolor;
             mFontSize = size;
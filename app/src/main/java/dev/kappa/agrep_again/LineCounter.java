@@ -0,0 +1,118 @@
+package dev.kappa.agrep_again;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Counts line breaks across consecutive buffers the way {@link java.io.BufferedReader#readLine()}
+ * splits lines: CR, LF and CR LF each end one line.
+ */
+final class LineCounter {
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long CR_BYTES = 0x0D0D0D0D0D0D0D0DL;
+    private static final long LF_BYTES = 0x0A0A0A0A0A0A0A0AL;
+
+    private int lines;
+    private boolean afterCarriageReturn;
+    /** The array or buffer {@link #words} reads */
+    private Object wrapped;
+    private ByteBuffer words;
+
+    /**
+     * Count the breaks in {@code buffer[from, to)}, continuing from the previous call.
+     * Eight bytes are tested at a time.
+     * @return Number of line breaks counted so far
+     */
+    int count(byte[] buffer, int from, int to) {
+        int i = from;
+        if (to - from >= Long.BYTES) {
+            if (wrapped != buffer) {
+                wrapped = buffer;
+                words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            i = countWords(from, to);
+        }
+        for (; i < to; i++) {
+            countChar(buffer[i]);
+        }
+        return lines;
+    }
+
+    /**
+     * Count the breaks in the bytes of {@code buffer} at {@code [from, to)}, continuing
+     * from the previous call. A mapped document is counted in place.
+     * @return Number of line breaks counted so far
+     */
+    int count(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        if (to - from >= Long.BYTES) {
+            if (wrapped != buffer) {
+                wrapped = buffer;
+                words = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            i = countWords(from, to);
+        }
+        for (; i < to; i++) {
+            countChar(buffer.get(i));
+        }
+        return lines;
+    }
+
+    /**
+     * Count the breaks in the whole words of {@link #words} from {@code from} on.
+     * @return Index of the first byte left, less than a word before {@code to}
+     */
+    private int countWords(int from, int to) {
+        int i = from;
+        boolean previousCr = afterCarriageReturn;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long word = words.getLong(i);
+            long cr = matchingBytes(word, CR_BYTES);
+            long lf = matchingBytes(word, LF_BYTES);
+            if ((cr | lf) != 0) {
+                // A CR LF pair is one break, also when split across two words
+                long pairs = cr & (lf >>> 8);
+                int count = Long.bitCount(cr) + Long.bitCount(lf) - Long.bitCount(pairs);
+                if (previousCr && (lf & 0x80L) != 0) {
+                    count--;
+                }
+                lines += count;
+            }
+            previousCr = cr < 0;
+        }
+        afterCarriageReturn = previousCr;
+        return i;
+    }
+
+    /**
+     * Count the breaks in {@code buffer[from, to)}, continuing from the previous call.
+     * @return Number of line breaks counted so far
+     */
+    int count(char[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            countChar(buffer[i]);
+        }
+        return lines;
+    }
+
+    private void countChar(int c) {
+        if (c == '\r') {
+            lines++;
+            afterCarriageReturn = true;
+        } else {
+            if (c == '\n' && !afterCarriageReturn) {
+                lines++;
+            }
+            afterCarriageReturn = false;
+        }
+    }
+
+    /**
+     * @return A word with the high bit set in exactly the bytes of {@code word} that equal
+     *         the byte repeated in {@code pattern}
+     */
+    private static long matchingBytes(long word, long pattern) {
+        long x = word ^ pattern;
+        return ~(((x & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | x | LOW_SEVEN_BITS);
+    }
+}
@@ -0,0 +1,220 @@
+package dev.kappa.agrep_again;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits decoded text into lines like {@link java.io.BufferedReader#readLine()}, but shows
+ * each line as a view of a buffer that is reused for every line and every document. Only
+ * {@link #lineString()} copies text, so a line that is not kept costs no allocation.
+ *
+ * <p>A line longer than the maximum window is returned in segments of at most that many
+ * characters. Each segment repeats the last {@code overlap} characters of the one before,
+ * so a match no longer than the overlap is never cut in two, and memory stays bounded
+ * however long the line is.</p>
+ */
+final class LineScanner {
+    private final int initialCapacity;
+    private final int maxLine;
+    private final int overlap;
+    private final CharSlice line = new CharSlice();
+    private final CharSlice context = new CharSlice();
+    private char[] buffer;
+    private Reader reader;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean skipLf;
+    private int lineNumber;
+    /** The next segment continues the current line */
+    private boolean inLongLine;
+    private int nextOffset;
+    private int lineOffset;
+    private boolean continued;
+
+    LineScanner(int initialCapacity) {
+        this(initialCapacity, Integer.MAX_VALUE - 2, 0);
+    }
+
+    /**
+     * @param maxLine Longest segment of a line returned at once
+     * @param overlap Characters each segment of a long line repeats from the one before
+     */
+    LineScanner(int initialCapacity, int maxLine, int overlap) {
+        if (overlap < 0 || overlap >= maxLine) {
+            throw new IllegalArgumentException("overlap " + overlap + ", maxLine " + maxLine);
+        }
+        this.initialCapacity = initialCapacity;
+        this.maxLine = maxLine;
+        this.overlap = overlap;
+        this.buffer = new char[initialCapacity];
+    }
+
+    /**
+     * Start reading a new document. A buffer grown for a very long line of the previous
+     * document is given up.
+     */
+    void reset(Reader reader) {
+        reset(reader, 0);
+    }
+
+    /**
+     * Start reading in the middle of a document, after {@code linesBefore} lines.
+     */
+    void reset(Reader reader, int linesBefore) {
+        this.reader = reader;
+        if (buffer.length > 4 * initialCapacity) {
+            buffer = new char[initialCapacity];
+        }
+        pos = 0;
+        limit = 0;
+        eof = false;
+        skipLf = false;
+        lineNumber = linesBefore;
+        inLongLine = false;
+        continued = false;
+    }
+
+    /**
+     * Queue {@code text[from, to)} to be scanned before the rest of the reader.
+     */
+    void preload(char[] text, int from, int to) {
+        int length = to - from;
+        if (buffer.length - limit < length) {
+            buffer = Arrays.copyOf(buffer, limit + length);
+        }
+        System.arraycopy(text, from, buffer, limit, length);
+        limit += length;
+    }
+
+    /**
+     * Advance to the next line or segment; the previous one's views become invalid.
+     * @return false at the end of the document
+     */
+    boolean next() throws IOException {
+        while (true) {
+            if (skipLf) {
+                // The previous line ended with CR at the end of the buffer
+                if (pos == limit && !eof) {
+                    fill();
+                    continue;
+                }
+                if (pos < limit && buffer[pos] == '\n') {
+                    pos++;
+                }
+                skipLf = false;
+            }
+            for (int i = pos; i < limit; i++) {
+                char c = buffer[i];
+                if (c == '\n' || c == '\r') {
+                    emit(pos, i, false);
+                    if (c == '\r') {
+                        if (i + 1 < limit) {
+                            pos = buffer[i + 1] == '\n' ? i + 2 : i + 1;
+                        } else {
+                            pos = i + 1;
+                            skipLf = true;
+                        }
+                    } else {
+                        pos = i + 1;
+                    }
+                    return true;
+                }
+            }
+            if (limit - pos > maxLine) {
+                // Leave the character after the segment in the buffer as its context
+                emit(pos, pos + maxLine, true);
+                pos += maxLine - overlap;
+                return true;
+            }
+            if (eof) {
+                if (pos < limit) {
+                    emit(pos, limit, false);
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+            fill();
+        }
+    }
+
+    private void emit(int start, int end, boolean partial) {
+        continued = inLongLine;
+        if (continued) {
+            lineOffset = nextOffset;
+        } else {
+            lineNumber++;
+            lineOffset = 0;
+        }
+        line.set(buffer, start, end);
+        context.set(buffer, continued ? start - 1 : start, partial ? end + 1 : end);
+        inLongLine = partial;
+        nextOffset = lineOffset + (end - start) - overlap;
+    }
+
+    private void fill() throws IOException {
+        // A segment after the first keeps the character before it as context
+        int keep = inLongLine ? pos - 1 : pos;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+        }
+        if (limit == buffer.length) {
+            // The current line does not fit; a segment and its context always will
+            buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, maxLine + 2L));
+        }
+        int n = reader.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    /**
+     * @return The current line or segment, valid until the next call to {@link #next()}
+     */
+    CharSequence line() {
+        return line;
+    }
+
+    /**
+     * @return The current segment with the character on each side where it cuts a line, for
+     *         matching with transparent bounds over {@link #contextStart()} and the segment's
+     *         length; a whole line has no context
+     */
+    CharSequence context() {
+        return context;
+    }
+
+    /**
+     * @return Index of the segment in {@link #context()}
+     */
+    int contextStart() {
+        return continued ? 1 : 0;
+    }
+
+    /**
+     * @return A copy of the current line or segment
+     */
+    String lineString() {
+        return line.toString();
+    }
+
+    /**
+     * @return One-based number of the current line
+     */
+    int lineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return Offset of the current segment in its line, 0 for a whole line
+     */
+    int lineOffset() {
+        return lineOffset;
+    }
+}
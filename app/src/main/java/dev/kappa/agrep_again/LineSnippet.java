@@ -0,0 +1,50 @@
+package dev.kappa.agrep_again;
+
+/**
+ * Cuts the text kept for a match down to a bounded snippet around the hit, so a match in a
+ * huge line, such as in minified JSON, does not keep the whole line alive.
+ */
+final class LineSnippet {
+    /** Lines up to this long are kept whole. */
+    static final int MAX_LENGTH = 512;
+    /** Characters kept before the hit when a line is cut. */
+    private static final int BEFORE = 128;
+    private static final char ELLIPSIS = '…';
+
+    private LineSnippet() {
+    }
+
+    /**
+     * @param hitStart Start of the hit in {@code line}
+     * @return {@code line}, or at most {@link #MAX_LENGTH} characters of it around the hit,
+     *         marked with an ellipsis where it was cut
+     */
+    static String of(CharSequence line, int hitStart) {
+        int length = line.length();
+        if (length <= MAX_LENGTH) {
+            return line.toString();
+        }
+        hitStart = Math.max(0, Math.min(hitStart, length));
+        int start = Math.max(0, hitStart - BEFORE);
+        int end = Math.min(length, start + MAX_LENGTH);
+        if (end - start < MAX_LENGTH) {
+            start = Math.max(0, end - MAX_LENGTH);
+        }
+        // Do not split a surrogate pair
+        if (start > 0 && Character.isLowSurrogate(line.charAt(start))) {
+            start++;
+        }
+        if (end < length && Character.isHighSurrogate(line.charAt(end - 1))) {
+            end--;
+        }
+        StringBuilder sb = new StringBuilder(end - start + 2);
+        if (start > 0) {
+            sb.append(ELLIPSIS);
+        }
+        sb.append(line, start, end);
+        if (end < length) {
+            sb.append(ELLIPSIS);
+        }
+        return sb.toString();
+    }
+}
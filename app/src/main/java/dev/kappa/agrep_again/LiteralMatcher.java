@@ -0,0 +1,104 @@
+package dev.kappa.agrep_again;
+
+import java.util.Arrays;
+
+/**
+ * Boyer-Moore-Horspool search for a plain-text query.
+ *
+ * <p>Finds the same occurrences as {@code Pattern.compile(Search.escapeMetaChar(literal))},
+ * with or without {@code CASE_INSENSITIVE|UNICODE_CASE}, without going through the regex
+ * engine. Instances are immutable and can be shared between threads.</p>
+ */
+public final class LiteralMatcher implements LiteralSearch {
+    private static final int SHIFT_TABLE_SIZE = 256;
+    private static final char[] ASCII_FOLD = new char[128];
+
+    static {
+        for (char c = 0; c < ASCII_FOLD.length; c++) {
+            ASCII_FOLD[c] = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+    }
+
+    private final char[] needle;
+    private final boolean ignoreCase;
+    private final int[] shift = new int[SHIFT_TABLE_SIZE];
+
+    private LiteralMatcher(char[] needle, boolean ignoreCase) {
+        this.needle = needle;
+        this.ignoreCase = ignoreCase;
+        int last = needle.length - 1;
+        Arrays.fill(shift, needle.length);
+        // Characters sharing a slot keep the smallest shift, which is always safe
+        for (int i = 0; i < last; i++) {
+            shift[needle[i] & (SHIFT_TABLE_SIZE - 1)] = last - i;
+        }
+    }
+
+    /**
+     * @return A matcher for {@code literal}, or null if it has to be left to the regex engine
+     */
+    public static LiteralMatcher compile(String literal, boolean ignoreCase) {
+        if (literal == null || literal.isEmpty()) {
+            return null;
+        }
+        char[] needle = literal.toCharArray();
+        if (ignoreCase) {
+            for (int i = 0; i < needle.length; i++) {
+                // Pattern folds supplementary characters as code points, not as surrogates
+                if (Character.isSurrogate(needle[i])) {
+                    return null;
+                }
+                needle[i] = fold(needle[i]);
+            }
+        }
+        return new LiteralMatcher(needle, ignoreCase);
+    }
+
+    /**
+     * @return Length of every match
+     */
+    public int length() {
+        return needle.length;
+    }
+
+    @Override
+    public boolean contains(CharSequence text) {
+        return indexOf(text, 0) >= 0;
+    }
+
+    @Override
+    public int matchEnd(CharSequence text, int start) {
+        return start + needle.length;
+    }
+
+    @Override
+    public int indexOf(CharSequence text, int from) {
+        int last = needle.length - 1;
+        int limit = text.length() - needle.length;
+        char lastChar = needle[last];
+        int i = Math.max(from, 0);
+        while (i <= limit) {
+            char c = charAt(text, i + last);
+            if (c == lastChar) {
+                int j = last - 1;
+                while (j >= 0 && charAt(text, i + j) == needle[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[c & (SHIFT_TABLE_SIZE - 1)];
+        }
+        return -1;
+    }
+
+    private char charAt(CharSequence text, int index) {
+        char c = text.charAt(index);
+        return ignoreCase ? fold(c) : c;
+    }
+
+    static char fold(char c) {
+        return c < ASCII_FOLD.length ? ASCII_FOLD[c] : TrigramIndex.fold(c);
+    }
+}
@@ -0,0 +1,24 @@
+package dev.kappa.agrep_again;
+
+/**
+ * Search for a non-regex query without going through {@link java.util.regex.Pattern}.
+ *
+ * <p>Implementations report the same matches as the pattern {@link Search} compiles for
+ * the query, and are immutable so one instance can be shared by all workers.</p>
+ */
+public interface LiteralSearch {
+    /**
+     * @return Whether {@code text} contains a match
+     */
+    boolean contains(CharSequence text);
+
+    /**
+     * @return Start of the first match at or after {@code from}, or -1 if there is none
+     */
+    int indexOf(CharSequence text, int from);
+
+    /**
+     * @return End of the match that {@link #indexOf} reported at {@code start}
+     */
+    int matchEnd(CharSequence text, int start);
+}
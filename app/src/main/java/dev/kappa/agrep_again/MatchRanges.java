@@ -0,0 +1,66 @@
+package dev.kappa.agrep_again;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * Finds where the query matches in the text kept for a result, once, on the thread that
+ * found it, so the result list only has to set spans.
+ */
+final class MatchRanges {
+    /** Most ranges recorded for one result; a snippet is short, so this rarely cuts. */
+    static final int MAX_RANGES = 64;
+
+    private MatchRanges() {
+    }
+
+    /**
+     * @param literal Matcher of a non-regex query, or null to use {@code matcher}
+     * @param matcher Matcher of the query's pattern, reset to {@code text} here
+     * @return Start and end of each non-empty match in {@code text}, in pairs, or null if
+     *         there are none
+     */
+    static int[] find(CharSequence text, LiteralSearch literal, Matcher matcher) {
+        int[] ranges = null;
+        int count = 0;
+        int length = text.length();
+        if (literal == null) {
+            matcher.reset(text);
+        }
+        int from = 0;
+        while (from <= length && count < MAX_RANGES * 2) {
+            int start;
+            int end;
+            if (literal != null) {
+                start = literal.indexOf(text, from);
+                if (start < 0) {
+                    break;
+                }
+                end = literal.matchEnd(text, start);
+            } else {
+                if (!matcher.find(from)) {
+                    break;
+                }
+                start = matcher.start();
+                end = matcher.end();
+            }
+            if (end <= start) {
+                // An empty match highlights nothing
+                from = start + 1;
+                continue;
+            }
+            if (ranges == null) {
+                ranges = new int[4];
+            } else if (count == ranges.length) {
+                ranges = Arrays.copyOf(ranges, count * 2);
+            }
+            ranges[count++] = start;
+            ranges[count++] = end;
+            from = end;
+        }
+        if (ranges == null) {
+            return null;
+        }
+        return count == ranges.length ? ranges : Arrays.copyOf(ranges, count);
+    }
+}
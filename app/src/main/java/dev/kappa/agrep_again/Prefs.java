@@ -30,16 +30,28 @@ public class Prefs
     public static final String KEY_HIGHLIGHTFG = "HighlightFg";
     public static final String KEY_HIGHLIGHTBG = "HighlightBg";
     public static final String KEY_ADD_LINENUMBER = "AddLineNumber";
+    public static final String KEY_MAX_ERRORS = "MaxErrors";
+    public static final String KEY_REPORT_BINARY = "ReportBinary";
+    public static final String KEY_TEXT_FILES_ONLY = "TextFilesOnly";
+    public static final String KEY_MAX_FILE_SIZE_MB = "MaxFileSizeMb";
 
     private static final String PREF_RECENT= "recent";
     private static final String KEY_DIRECTORY_MIGRATION_PROMPTED = "DirectoryMigrationPrompted";
 
     boolean mRegularExpression = false;
     boolean mIgnoreCase = true;
+    /** Errors allowed by approximate matching; 0 searches for exact matches only. */
+    int mMaxErrors = 0;
     int mFontSize = 16;
     int mHighlightBg = 0xFF00FFFF;
     int mHighlightFg = 0xFF000000;
     boolean addLineNumber=false;
+    /** Report binary documents that match instead of skipping them. */
+    boolean mReportBinary = false;
+    /** Skip documents whose MIME type is known not to be text, without opening them. */
+    boolean mTextFilesOnly = true;
+    /** Skip documents larger than this many megabytes; 0 for no limit. */
+    int mMaxFileSizeMb = 0;
     ArrayList<CheckedString> mDirList = new ArrayList<>();
     ArrayList<CheckedString> mExtList = new ArrayList<>();
     ArrayList<String> mLegacyDirectories = new ArrayList<>();
@@ -60,6 +72,7 @@ public class Prefs
 
         prefs.mRegularExpression = sp.getBoolean(KEY_REGULAR_EXPRESSION, false );
         prefs.mIgnoreCase = sp.getBoolean(KEY_IGNORE_CASE, true );
+        prefs.mMaxErrors = sp.getInt(KEY_MAX_ERRORS, 0 );
 
         try {
             prefs.mFontSize = Integer.parseInt( sp.getString( KEY_FONTSIZE , "-1" ) );
@@ -70,6 +83,9 @@ public class Prefs
         prefs.mHighlightBg = sp.getInt( KEY_HIGHLIGHTBG , 0xFF00FFFF );
 
         prefs.addLineNumber = sp.getBoolean(KEY_ADD_LINENUMBER, false);
+        prefs.mReportBinary = sp.getBoolean(KEY_REPORT_BINARY, false);
+        prefs.mTextFilesOnly = sp.getBoolean(KEY_TEXT_FILES_ONLY, true);
+        prefs.mMaxFileSizeMb = sp.getInt(KEY_MAX_FILE_SIZE_MB, 0);
         return prefs;
     }
 
@@ -199,6 +215,9 @@ public class Prefs
         editor.remove(KEY_TARGET_DIRECTORIES_NEW);
         editor.putBoolean(KEY_REGULAR_EXPRESSION, mRegularExpression);
         editor.putBoolean(KEY_IGNORE_CASE, mIgnoreCase );
+        editor.putInt(KEY_MAX_ERRORS, mMaxErrors );
+        editor.putBoolean(KEY_TEXT_FILES_ONLY, mTextFilesOnly);
+        editor.putInt(KEY_MAX_FILE_SIZE_MB, mMaxFileSizeMb);
 
         editor.apply();
 
@@ -0,0 +1,318 @@
+package dev.kappa.agrep_again;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Extracts the literal strings a query requires from every matching line.
+ *
+ * <p>The result is in disjunctive form: a line can only match if, for at least one
+ * alternative, it contains every literal of that alternative. A {@code null} result means
+ * the query places no usable constraint on the text. The analysis is conservative; anything
+ * it does not understand ends the current literal instead of guessing.</p>
+ */
+public final class QueryLiterals {
+
+    private QueryLiterals() {
+    }
+
+    /**
+     * @param query The query as typed by the user
+     * @param regularExpression Whether the query is a regular expression
+     * @param minLength Literals shorter than this are not useful and are dropped
+     * @return Alternatives of required literals, or null if some alternative requires nothing
+     */
+    public static List<List<String>> extract(String query, boolean regularExpression, int minLength) {
+        if (query == null || query.isEmpty()) {
+            return null;
+        }
+        List<List<String>> alternatives = new ArrayList<>();
+        if (!regularExpression) {
+            // Search.convertOrPattern turns spaces into alternation
+            for (String term : query.split(" ", -1)) {
+                if (term.length() < minLength) {
+                    return null;
+                }
+                alternatives.add(Collections.singletonList(term));
+            }
+            return alternatives;
+        }
+
+        for (String branch : splitTopLevel(query)) {
+            List<String> literals = literalRuns(branch, minLength);
+            if (literals == null || literals.isEmpty()) {
+                return null;
+            }
+            alternatives.add(literals);
+        }
+        return alternatives;
+    }
+
+    private static List<String> splitTopLevel(String regex) {
+        List<String> branches = new ArrayList<>();
+        int depth = 0;
+        boolean inClass = false;
+        int start = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                branches.add(regex.substring(start, i));
+                start = i + 1;
+            }
+        }
+        branches.add(regex.substring(start));
+        return branches;
+    }
+
+    /**
+     * Collect the literal runs of a branch without top-level alternation.
+     * @return The runs, or null if the branch uses syntax that changes how literals are read
+     */
+    private static List<String> literalRuns(String regex, int minLength) {
+        List<String> runs = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        int len = regex.length();
+        int i = 0;
+        while (i < len) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= len) {
+                    return null;
+                }
+                char next = regex.charAt(i + 1);
+                if (next == 'Q') {
+                    // \Q...\E quoting; rare enough to not be worth handling
+                    return null;
+                }
+                i += 2;
+                if (Character.isLetterOrDigit(next)) {
+                    // Character class, anchor, back reference or control escape
+                    flush(run, runs, minLength);
+                    i = skipEscapeArgument(regex, i, next);
+                    i = skipQuantifier(regex, i);
+                    continue;
+                }
+                run.append(next);
+            } else if (c == '[') {
+                flush(run, runs, minLength);
+                i = skipClass(regex, i);
+                i = skipQuantifier(regex, i);
+                continue;
+            } else if (c == '(') {
+                if (i + 1 < len && regex.charAt(i + 1) == '?' && i + 2 < len) {
+                    char kind = regex.charAt(i + 2);
+                    if (Character.isLetter(kind) || kind == '-') {
+                        // Inline flags such as (?x) change how the rest is parsed
+                        return null;
+                    }
+                }
+                flush(run, runs, minLength);
+                i = skipGroup(regex, i);
+                i = skipQuantifier(regex, i);
+                continue;
+            } else if (c == '*' || c == '?' || c == '{') {
+                // The previous atom is optional or repeated: it may be absent
+                if (run.length() > 0 && !isExactRepeat(regex, i)) {
+                    run.setLength(run.length() - 1);
+                }
+                flush(run, runs, minLength);
+                i = skipQuantifier(regex, i);
+                continue;
+            } else if (c == '+') {
+                flush(run, runs, minLength);
+                i = skipQuantifier(regex, i);
+                continue;
+            } else if (c == '.' || c == '^' || c == '$' || c == ')' || c == '|') {
+                flush(run, runs, minLength);
+                i++;
+                continue;
+            } else {
+                i++;
+                run.append(c);
+            }
+        }
+        flush(run, runs, minLength);
+        return runs;
+    }
+
+    /**
+     * Pick the longest literal of each alternative, the last of equally long ones, so
+     * {@code foo\d+bar} requires "bar". Every matching line contains at least one of them,
+     * which makes a cheap test to run before the full pattern.
+     * @return The literals, or null if {@code alternatives} is null
+     */
+    public static List<String> longestPerAlternative(List<List<String>> alternatives) {
+        if (alternatives == null) {
+            return null;
+        }
+        List<String> longest = new ArrayList<>(alternatives.size());
+        for (List<String> literals : alternatives) {
+            String best = literals.get(0);
+            for (String literal : literals) {
+                if (literal.length() >= best.length()) {
+                    best = literal;
+                }
+            }
+            if (!longest.contains(best)) {
+                longest.add(best);
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Skip what follows an escape letter as part of the escape, e.g. the digits of
+     * {@code \x41} or the name in {@code \p{Alpha}}, so it is not taken for literal text.
+     */
+    private static int skipEscapeArgument(String regex, int i, char escape) {
+        int len = regex.length();
+        switch (escape) {
+            case 'x':
+            case 'u':
+            case 'N':
+            case 'p':
+            case 'P':
+                if (i < len && regex.charAt(i) == '{') {
+                    int close = regex.indexOf('}', i);
+                    return close < 0 ? len : close + 1;
+                }
+                if (escape == 'x') {
+                    return Math.min(i + 2, len);
+                }
+                if (escape == 'u') {
+                    return Math.min(i + 4, len);
+                }
+                // \pL names a one-letter category
+                return escape == 'N' ? i : Math.min(i + 1, len);
+            case 'c':
+                return Math.min(i + 1, len);
+            case 'k':
+                if (i < len && regex.charAt(i) == '<') {
+                    int close = regex.indexOf('>', i);
+                    return close < 0 ? len : close + 1;
+                }
+                return i;
+            default:
+                if (Character.isDigit(escape)) {
+                    // Octal escape or back reference; either way the digits belong to it
+                    while (i < len && Character.isDigit(regex.charAt(i))) {
+                        i++;
+                    }
+                }
+                return i;
+        }
+    }
+
+    private static void flush(StringBuilder run, List<String> runs, int minLength) {
+        if (run.length() >= minLength) {
+            runs.add(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    /** @return true for {n} or {n,...} with n >= 1, which always keeps the atom */
+    private static boolean isExactRepeat(String regex, int i) {
+        if (regex.charAt(i) != '{') {
+            return false;
+        }
+        int j = i + 1;
+        int n = 0;
+        boolean digits = false;
+        while (j < regex.length() && Character.isDigit(regex.charAt(j))) {
+            n = n * 10 + (regex.charAt(j) - '0');
+            digits = true;
+            j++;
+        }
+        return digits && n > 0;
+    }
+
+    private static int skipQuantifier(String regex, int i) {
+        int len = regex.length();
+        while (i < len) {
+            char c = regex.charAt(i);
+            if (c == '*' || c == '+' || c == '?') {
+                i++;
+            } else if (c == '{') {
+                int close = regex.indexOf('}', i);
+                if (close < 0) {
+                    return len;
+                }
+                i = close + 1;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static int skipClass(String regex, int i) {
+        int len = regex.length();
+        int depth = 0;
+        i++;
+        if (i < len && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < len && regex.charAt(i) == ']') {
+            i++;
+        }
+        while (i < len) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                if (depth == 0) {
+                    return i + 1;
+                }
+                depth--;
+            }
+            i++;
+        }
+        return len;
+    }
+
+    private static int skipGroup(String regex, int i) {
+        int len = regex.length();
+        int depth = 0;
+        while (i < len) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                i = skipClass(regex, i);
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+            i++;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,250 @@
+package dev.kappa.agrep_again;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-document results of one query over one root, persisted between searches.
+ *
+ * <p>A document's stored matches are only reused if its size and last-modified time are
+ * unchanged. The file name carries the root and a fingerprint of the pattern and flags, so
+ * a different query never sees these results.</p>
+ *
+ * <p>At most a given number of matches is recorded; past it, the recorded results are
+ * dropped and the cache is {@linkplain #isOverflowed() overflowed}, so a search with huge
+ * results does not keep them all on the heap.</p>
+ */
+public final class ResultCache {
+    private static final int MAGIC = 0x41475243; // "AGRC"
+    private static final int VERSION = 3;
+
+    /**
+     * Stored results of one document; {@code lines}, {@code texts}, {@code errors} and
+     * {@code offsets} are parallel arrays.
+     */
+    public static final class Document {
+        public final String documentId;
+        public final long size;
+        public final long lastModified;
+        public final int[] lines;
+        public final String[] texts;
+        public final int[] errors;
+        public final int[] offsets;
+
+        public Document(String documentId, long size, long lastModified, int[] lines, String[] texts,
+                        int[] errors) {
+            this(documentId, size, lastModified, lines, texts, errors, new int[lines.length]);
+        }
+
+        public Document(String documentId, long size, long lastModified, int[] lines, String[] texts,
+                        int[] errors, int[] offsets) {
+            this.documentId = documentId;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lines = lines;
+            this.texts = texts;
+            this.errors = errors;
+            this.offsets = offsets;
+        }
+
+        public int matchCount() {
+            return lines.length;
+        }
+    }
+
+    private final Map<String, Document> previous;
+    private final int maxMatches;
+    private final List<Document> current = Collections.synchronizedList(new ArrayList<>());
+    private int currentMatches;
+    private volatile boolean overflowed;
+
+    private ResultCache(Map<String, Document> previous, int maxMatches) {
+        this.previous = previous;
+        this.maxMatches = maxMatches;
+    }
+
+    /**
+     * Load the results stored by an earlier search.
+     * @return A cache holding those results, or an empty cache if there are none
+     */
+    public static ResultCache load(File file) {
+        return load(file, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Load the results stored by an earlier search.
+     * @param maxMatches Most matches to record for the next search
+     * @return A cache holding those results, or an empty cache if there are none
+     */
+    public static ResultCache load(File file, int maxMatches) {
+        Map<String, Document> documents = new HashMap<>();
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 65536))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String documentId = in.readUTF();
+                        long size = in.readLong();
+                        long modified = in.readLong();
+                        int matches = in.readInt();
+                        int[] lines = new int[matches];
+                        String[] texts = new String[matches];
+                        int[] errors = new int[matches];
+                        int[] offsets = new int[matches];
+                        for (int m = 0; m < matches; m++) {
+                            lines[m] = in.readInt();
+                            byte[] text = new byte[in.readInt()];
+                            in.readFully(text);
+                            texts[m] = new String(text, StandardCharsets.UTF_8);
+                            errors[m] = in.readInt();
+                            offsets[m] = in.readInt();
+                        }
+                        documents.put(documentId,
+                                new Document(documentId, size, modified, lines, texts, errors, offsets));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                documents.clear();
+            }
+        }
+        return new ResultCache(documents, maxMatches);
+    }
+
+    /**
+     * @return The stored results if the document is unchanged since they were recorded,
+     *         otherwise null
+     */
+    public Document lookup(String documentId, long size, long lastModified) {
+        if (size < 0 || lastModified <= 0) {
+            return null;
+        }
+        Document document = previous.get(documentId);
+        if (document == null || document.size != size || document.lastModified != lastModified) {
+            return null;
+        }
+        return document;
+    }
+
+    /**
+     * Record the results of a document for the next search. Documents without a known size
+     * and timestamp cannot be validated later and are not recorded. Once more than the
+     * limit of matches would be recorded, everything recorded is dropped.
+     */
+    public void record(Document document) {
+        if (document.size < 0 || document.lastModified <= 0) {
+            return;
+        }
+        synchronized (current) {
+            if (overflowed) {
+                return;
+            }
+            if (document.matchCount() > maxMatches - currentMatches) {
+                overflow();
+                return;
+            }
+            current.add(document);
+            currentMatches += document.matchCount();
+        }
+    }
+
+    /**
+     * @return true if a document with {@code matches} matches can still be recorded
+     */
+    public boolean canRecord(int matches) {
+        synchronized (current) {
+            return !overflowed && matches <= maxMatches - currentMatches;
+        }
+    }
+
+    /**
+     * Drop the recorded results and record no more, as if the limit had been passed.
+     */
+    public void overflow() {
+        synchronized (current) {
+            overflowed = true;
+            current.clear();
+            currentMatches = 0;
+        }
+    }
+
+    /** @return true if the results were too many to record, and none are */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /** @return Number of matches recorded for the next search */
+    public int recordedMatches() {
+        synchronized (current) {
+            return currentMatches;
+        }
+    }
+
+    /**
+     * Write the recorded results, replacing the file atomically.
+     */
+    public void save(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            synchronized (current) {
+                out.writeInt(current.size());
+                for (Document document : current) {
+                    out.writeUTF(document.documentId);
+                    out.writeLong(document.size);
+                    out.writeLong(document.lastModified);
+                    out.writeInt(document.lines.length);
+                    for (int m = 0; m < document.lines.length; m++) {
+                        out.writeInt(document.lines[m]);
+                        byte[] text = document.texts[m].getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(text.length);
+                        out.write(text);
+                        out.writeInt(document.errors[m]);
+                        out.writeInt(document.offsets[m]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Delete the oldest files in a cache directory, keeping at most {@code keep} of them.
+     */
+    public static void prune(File dir, int keep) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= keep) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        for (int i = keep; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+}
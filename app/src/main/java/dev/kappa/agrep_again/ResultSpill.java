@@ -0,0 +1,192 @@
+package dev.kappa.agrep_again;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Matches of a {@link ResultStore} that outgrew its memory budget, kept in two files of a
+ * cache directory: an append-only data file of rows, and an index file holding the data
+ * offset of each row, so a range of rows is found with one read of each.
+ *
+ * <p>Not thread safe; {@link ResultStore} synchronizes access.</p>
+ */
+final class ResultSpill implements Closeable {
+    /** Row header: file index, line, errors, offset, text length and range count. */
+    private static final int HEADER_BYTES = 6 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Rows read back, in parallel arrays.
+     */
+    static final class Rows {
+        final int[] files;
+        final int[] lines;
+        final int[] errors;
+        final int[] offsets;
+        final byte[][] texts;
+        final int[][] ranges;
+
+        Rows(int capacity) {
+            files = new int[capacity];
+            lines = new int[capacity];
+            errors = new int[capacity];
+            offsets = new int[capacity];
+            texts = new byte[capacity][];
+            ranges = new int[capacity][];
+        }
+    }
+
+    private final File dataFile;
+    private final File indexFile;
+    private final DataOutputStream dataOut;
+    private final DataOutputStream indexOut;
+    private final RandomAccessFile data;
+    private final RandomAccessFile index;
+    private int size;
+    private long dataLength;
+    private boolean dirty;
+    private byte[] readBuffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Create a new, empty spill in {@code dir}.
+     */
+    static ResultSpill create(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File dataFile = File.createTempFile("rows", ".dat", dir);
+        File indexFile = new File(dir, dataFile.getName().replace(".dat", ".idx"));
+        try {
+            return new ResultSpill(dataFile, indexFile);
+        } catch (IOException e) {
+            dataFile.delete();
+            indexFile.delete();
+            throw e;
+        }
+    }
+
+    private ResultSpill(File dataFile, File indexFile) throws IOException {
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+        dataOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), BUFFER_SIZE));
+        indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), BUFFER_SIZE));
+        data = new RandomAccessFile(dataFile, "r");
+        index = new RandomAccessFile(indexFile, "r");
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Append a row; it can be read back right away.
+     * @param ranges Match ranges in pairs, or null
+     */
+    void append(int file, int line, int errors, int offset, byte[] text, int[] ranges) throws IOException {
+        int rangeCount = ranges != null ? ranges.length : 0;
+        indexOut.writeLong(dataLength);
+        dataOut.writeInt(file);
+        dataOut.writeInt(line);
+        dataOut.writeInt(errors);
+        dataOut.writeInt(offset);
+        dataOut.writeInt(text.length);
+        dataOut.writeInt(rangeCount);
+        dataOut.write(text);
+        for (int i = 0; i < rangeCount; i++) {
+            dataOut.writeInt(ranges[i]);
+        }
+        dataLength += HEADER_BYTES + text.length + (long) rangeCount * Integer.BYTES;
+        size++;
+        dirty = true;
+    }
+
+    /**
+     * Read rows {@code [from, from + count)} into {@code out} from index {@code at} on.
+     */
+    void read(int from, int count, Rows out, int at) throws IOException {
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException("from " + from + ", count " + count + ", size " + size);
+        }
+        if (count == 0) {
+            return;
+        }
+        flush();
+        // Consecutive rows are stored back to back
+        long start = offsetOf(from);
+        long end = from + count < size ? offsetOf(from + count) : dataLength;
+        int length = (int) (end - start);
+        if (readBuffer.length < length) {
+            readBuffer = new byte[length];
+        }
+        data.seek(start);
+        data.readFully(readBuffer, 0, length);
+        ByteBuffer rows = ByteBuffer.wrap(readBuffer, 0, length);
+        for (int i = at; i < at + count; i++) {
+            out.files[i] = rows.getInt();
+            out.lines[i] = rows.getInt();
+            out.errors[i] = rows.getInt();
+            out.offsets[i] = rows.getInt();
+            byte[] text = new byte[rows.getInt()];
+            int[] ranges = readRanges(rows.getInt());
+            rows.get(text);
+            out.texts[i] = text;
+            if (ranges != null) {
+                for (int r = 0; r < ranges.length; r++) {
+                    ranges[r] = rows.getInt();
+                }
+            }
+            out.ranges[i] = ranges;
+        }
+        if (readBuffer.length > 4 * BUFFER_SIZE) {
+            // Only a row range with very long snippets needs a big buffer
+            readBuffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private static int[] readRanges(int count) {
+        return count > 0 ? new int[count] : null;
+    }
+
+    private long offsetOf(int row) throws IOException {
+        index.seek((long) row * Long.BYTES);
+        return index.readLong();
+    }
+
+    /**
+     * Write out buffered rows, so other readers of the files see them.
+     */
+    void flush() throws IOException {
+        if (dirty) {
+            dataOut.flush();
+            indexOut.flush();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Close the files and delete them.
+     */
+    @Override
+    public void close() {
+        closeQuietly(dataOut);
+        closeQuietly(indexOut);
+        closeQuietly(data);
+        closeQuietly(index);
+        dataFile.delete();
+        indexFile.delete();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
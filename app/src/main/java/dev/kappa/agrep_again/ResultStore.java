@@ -0,0 +1,671 @@
+package dev.kappa.agrep_again;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.net.Uri;
+
+/**
+ * All matches of one search, packed into parallel primitive arrays. Each document is one
+ * shared {@link FileRecord}, and a match holds only its index, line number, error count,
+ * offset, snippet as UTF-8 bytes and match ranges in the snippet. {@link GrepView.Data} is
+ * only created when a row is shown.
+ *
+ * <p>Matches are stored in the order they arrive, and keep their row, which is also their
+ * id. The consecutive matches of a document added as one {@link Batch} form a segment, and
+ * the segments are kept ordered by display name ignoring case, then by document and line,
+ * so the matches are never sorted: a {@link Snapshot} shows them in order at any time.</p>
+ *
+ * <p>Once the matches outgrow {@link #MEMORY_BUDGET}, all of them move to a
+ * {@link ResultSpill} in the spill directory, and later ones are appended there, so a
+ * search with millions of matches keeps a flat heap.</p>
+ *
+ * <p>Match workers append while the UI reads; every method is synchronized. The UI takes
+ * the matches in frame-sized steps with {@link #next}; while it is watching, workers that
+ * get more than {@link #MAX_UNSHOWN} matches ahead of it wait in {@link #awaitDemand}, so
+ * no match is dropped and the list never falls far behind.</p>
+ */
+final class ResultStore implements Closeable {
+    /** Estimated bytes of matches kept in memory before they are spilled to disk. */
+    static final int MEMORY_BUDGET = 8 * 1024 * 1024;
+    /**
+     * Estimated bytes per match besides its text and ranges: four ints, and the array
+     * headers and references of both.
+     */
+    private static final int ROW_OVERHEAD = 48;
+    private static final int INITIAL_CAPACITY = 256;
+    /** Matches added but not yet taken by a watching consumer at which workers wait. */
+    static final int MAX_UNSHOWN = 65536;
+    /** A consumer that takes nothing for this long is not waited for. */
+    private static final long STALL_MILLIS = 1000;
+    private static final long DEMAND_POLL_MILLIS = 50;
+
+    /**
+     * The document a match was found in, shared by all of its matches.
+     */
+    static final class FileRecord {
+        final Uri uri;
+        final String displayName;
+
+        FileRecord(Uri uri, String displayName) {
+            this.uri = uri;
+            this.displayName = displayName;
+        }
+    }
+
+    /**
+     * Consecutive matches of one document, in line order, to add to the store at once.
+     * Adding it again adds only the matches added to it since, so it can keep all of a
+     * document's matches, or be {@linkplain #clear() cleared} once they are stored.
+     */
+    static final class Batch {
+        final int file;
+        private int size;
+        /** Matches already added to the store */
+        private int stored;
+        private int[] lines = new int[16];
+        private CharSequence[] texts = new CharSequence[16];
+        private int[] errors = new int[16];
+        private int[] offsets = new int[16];
+        private int[][] ranges = new int[16][];
+
+        /**
+         * @param file Index {@link ResultStore#addFile} returned for the document
+         */
+        Batch(int file) {
+            this.file = file;
+        }
+
+        /**
+         * @param matchRanges Start and end of each match in {@code text}, in pairs, or null
+         */
+        void add(int line, CharSequence text, int errorCount, int offset, int[] matchRanges) {
+            if (size == lines.length) {
+                int capacity = size * 2;
+                lines = Arrays.copyOf(lines, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+                errors = Arrays.copyOf(errors, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                ranges = Arrays.copyOf(ranges, capacity);
+            }
+            lines[size] = line;
+            texts[size] = text;
+            errors[size] = errorCount;
+            offsets[size] = offset;
+            ranges[size] = matchRanges;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int line(int i) {
+            return lines[i];
+        }
+
+        CharSequence text(int i) {
+            return texts[i];
+        }
+
+        int errors(int i) {
+            return errors[i];
+        }
+
+        int offset(int i) {
+            return offsets[i];
+        }
+
+        /**
+         * @return Number of matches not added to the store yet
+         */
+        int unstored() {
+            return size - stored;
+        }
+
+        void clear() {
+            Arrays.fill(texts, 0, size, null);
+            Arrays.fill(ranges, 0, size, null);
+            size = 0;
+            stored = 0;
+        }
+    }
+
+    /**
+     * Receives a range of positions.
+     */
+    interface RangeSink {
+        void range(int start, int count);
+    }
+
+    /**
+     * The matches in order as they were at one moment. Matches added later do not change
+     * it; a newer snapshot places them between the ones already shown.
+     */
+    final class Snapshot {
+        /** Segments the store had, which are segments {@code [0, segmentCount)} */
+        private final int segmentCount;
+        /** Segment at each place of the order */
+        private final int[] segments;
+        /** Position of the first match of the segment at each place */
+        private final int[] starts;
+        /** Row of the first match of the segment at each place */
+        private final int[] rows;
+        private final int size;
+        /** Segment count of the snapshot this one was built from */
+        private final int baseCount;
+        /** Places of the segments added since that snapshot, ascending */
+        private final int[] added;
+
+        private Snapshot(int[] segments, int[] starts, int[] rows, int size, int baseCount, int[] added) {
+            this.segmentCount = segments.length;
+            this.segments = segments;
+            this.starts = starts;
+            this.rows = rows;
+            this.size = size;
+            this.baseCount = baseCount;
+            this.added = added;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return Row of the match at {@code position}, which is also its id
+         */
+        int rowAt(int position) {
+            if (position < 0 || position >= size) {
+                throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+            }
+            int place = Arrays.binarySearch(starts, position);
+            if (place < 0) {
+                place = -place - 2;
+            }
+            return rows[place] + position - starts[place];
+        }
+
+        /**
+         * @return A new view of the match at {@code position}
+         */
+        GrepView.Data get(int position) {
+            return getRow(rowAt(position));
+        }
+
+        /**
+         * Pass {@code sink} the positions in this snapshot of the matches added since
+         * {@code older}, in ascending order, merging adjacent ranges.
+         */
+        void forEachAdded(Snapshot older, RangeSink sink) {
+            if (older.segmentCount == baseCount) {
+                // Built from a snapshot like older, so the places are known
+                forEachPlace(added, added.length, sink);
+                return;
+            }
+            int[] places = new int[segments.length];
+            int count = 0;
+            for (int place = 0; place < segments.length; place++) {
+                if (segments[place] >= older.segmentCount) {
+                    places[count++] = place;
+                }
+            }
+            forEachPlace(places, count, sink);
+        }
+
+        private void forEachPlace(int[] places, int placeCount, RangeSink sink) {
+            int start = -1;
+            int count = 0;
+            for (int i = 0; i < placeCount; i++) {
+                int place = places[i];
+                int length = (place + 1 < starts.length ? starts[place + 1] : size) - starts[place];
+                if (start >= 0 && start + count == starts[place]) {
+                    count += length;
+                    continue;
+                }
+                if (start >= 0) {
+                    sink.range(start, count);
+                }
+                start = starts[place];
+                count = length;
+            }
+            if (start >= 0) {
+                sink.range(start, count);
+            }
+        }
+    }
+
+    private final File spillDir;
+    private final int memoryBudget;
+    private final List<FileRecord> files = new ArrayList<>();
+    private int[] fileIndexes = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    private int[] errors = new int[INITIAL_CAPACITY];
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private byte[][] texts = new byte[INITIAL_CAPACITY][];
+    private int[][] ranges = new int[INITIAL_CAPACITY][];
+    private long memoryBytes;
+    private ResultSpill spill;
+    /** Set if a spill could not be created; the matches then stay in memory. */
+    private boolean spillFailed;
+    /** The first failed write to the spill, after which no match is stored */
+    private IOException failure;
+    private ResultSpill.Rows page;
+    private int size;
+    private boolean closed;
+    private int[] segmentFiles = new int[INITIAL_CAPACITY];
+    private int[] segmentRows = new int[INITIAL_CAPACITY];
+    private int[] segmentLengths = new int[INITIAL_CAPACITY];
+    private int segmentCount;
+    /** The snapshot built last, which the next one is built from, or null */
+    private Snapshot latest;
+    /** Set while a consumer is watching, so workers wait for it */
+    private boolean throttled;
+    /** Matches handed to the consumer so far */
+    private int shownRows;
+    private long lastTaken;
+
+    /**
+     * A store that keeps every match in memory.
+     */
+    ResultStore() {
+        this(null, MEMORY_BUDGET);
+    }
+
+    /**
+     * @param spillDir Directory to spill matches to past the memory budget, or null to
+     *                 keep them all in memory
+     */
+    ResultStore(File spillDir) {
+        this(spillDir, MEMORY_BUDGET);
+    }
+
+    ResultStore(File spillDir, int memoryBudget) {
+        this.spillDir = spillDir;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return Index of a new file record, to pass to {@link Batch#Batch(int)}
+     */
+    synchronized int addFile(Uri uri, String displayName) {
+        files.add(new FileRecord(uri, displayName));
+        return files.size() - 1;
+    }
+
+    /**
+     * Append the matches added to {@code batch} since it was last added as one segment,
+     * placed in order among the others.
+     * @return false if the store is closed or failed to store a match, and takes no more
+     */
+    synchronized boolean add(Batch batch) {
+        int from = batch.stored;
+        batch.stored = batch.size;
+        if (closed || failure != null) {
+            return false;
+        }
+        int first = size;
+        for (int i = from; i < batch.size; i++) {
+            if (!add(batch.file, batch.lines[i], batch.texts[i].toString().getBytes(StandardCharsets.UTF_8),
+                    batch.errors[i], batch.offsets[i], batch.ranges[i])) {
+                break;
+            }
+        }
+        if (size > first) {
+            addSegment(batch.file, first);
+        }
+        return failure == null;
+    }
+
+    private void addSegment(int file, int first) {
+        if (segmentCount == segmentRows.length) {
+            int capacity = segmentCount * 2;
+            segmentFiles = Arrays.copyOf(segmentFiles, capacity);
+            segmentRows = Arrays.copyOf(segmentRows, capacity);
+            segmentLengths = Arrays.copyOf(segmentLengths, capacity);
+        }
+        segmentFiles[segmentCount] = file;
+        segmentRows[segmentCount] = first;
+        segmentLengths[segmentCount] = size - first;
+        segmentCount++;
+    }
+
+    /**
+     * @return false if the spill failed to take the match
+     */
+    private boolean add(int file, int line, byte[] text, int errorCount, int offset, int[] matchRanges) {
+        int rowBytes = ROW_OVERHEAD + text.length + (matchRanges != null ? matchRanges.length * Integer.BYTES : 0);
+        if (spill == null && spillDir != null && !spillFailed && memoryBytes + rowBytes > memoryBudget) {
+            startSpill();
+        }
+        if (spill != null) {
+            try {
+                spill.append(file, line, errorCount, offset, text, matchRanges);
+                size++;
+                return true;
+            } catch (IOException e) {
+                // Rather than lose matches, the search stops and reports it
+                failure = e;
+                return false;
+            }
+        }
+        if (size == lines.length) {
+            int capacity = size * 2;
+            fileIndexes = Arrays.copyOf(fileIndexes, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            errors = Arrays.copyOf(errors, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+            ranges = Arrays.copyOf(ranges, capacity);
+        }
+        fileIndexes[size] = file;
+        lines[size] = line;
+        errors[size] = errorCount;
+        offsets[size] = offset;
+        texts[size] = text;
+        ranges[size] = matchRanges;
+        memoryBytes += rowBytes;
+        size++;
+        return true;
+    }
+
+    /**
+     * Order of segments like {@link GrepView.Data#compare}: by display name ignoring case,
+     * then by line. Documents whose names are equal ignoring case are not interleaved but
+     * follow each other in the order they were added.
+     */
+    private int compareSegments(int a, int b) {
+        int fileA = segmentFiles[a];
+        int fileB = segmentFiles[b];
+        if (fileA != fileB) {
+            int c = displayName(fileA).compareToIgnoreCase(displayName(fileB));
+            return c != 0 ? c : Integer.compare(fileA, fileB);
+        }
+        // The segments of a document are added in line order
+        return Integer.compare(a, b);
+    }
+
+    private String displayName(int file) {
+        String name = files.get(file).displayName;
+        return name != null ? name : "";
+    }
+
+    /**
+     * Move the matches in memory to a new spill. If it cannot be created, they stay in
+     * memory.
+     */
+    private void startSpill() {
+        ResultSpill created = null;
+        try {
+            created = ResultSpill.create(spillDir);
+            for (int i = 0; i < size; i++) {
+                created.append(fileIndexes[i], lines[i], errors[i], offsets[i], texts[i], ranges[i]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (created != null) {
+                created.close();
+            }
+            // Do not try again for every match
+            spillFailed = true;
+            return;
+        }
+        spill = created;
+        fileIndexes = null;
+        lines = null;
+        errors = null;
+        offsets = null;
+        texts = null;
+        ranges = null;
+        memoryBytes = 0;
+    }
+
+    /**
+     * @return Number of matches stored so far
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The write to the spill that failed, or null if every match was stored
+     */
+    synchronized IOException failure() {
+        return failure;
+    }
+
+    /**
+     * @return true if the matches have moved to disk
+     */
+    synchronized boolean isSpilled() {
+        return spill != null;
+    }
+
+    /**
+     * @return The matches in order as they are now
+     */
+    synchronized Snapshot snapshot() {
+        if (latest == null || latest.segmentCount != segmentCount) {
+            build(null, segmentCount);
+        }
+        return taken(latest);
+    }
+
+    /**
+     * Take the next step of matches for a consumer: the matches of {@code shown}, and those
+     * added after it up to about {@code maxRows} more, at least one segment if there is any.
+     * @param shown Snapshot the consumer shows, or null if none
+     */
+    synchronized Snapshot next(Snapshot shown, int maxRows) {
+        int end = shown != null ? Math.min(shown.segmentCount, segmentCount) : 0;
+        int rows = 0;
+        while (end < segmentCount && (rows == 0 || rows + segmentLengths[end] <= maxRows)) {
+            rows += segmentLengths[end];
+            end++;
+        }
+        if (end == segmentCount) {
+            return snapshot();
+        }
+        return taken(build(shown, end));
+    }
+
+    /**
+     * Build a snapshot of segments {@code [0, end)} from an older one, placing only the
+     * segments added since with a binary search each, and make it the latest.
+     * @param shown Snapshot to build from if it is one of this store, or null
+     */
+    private Snapshot build(Snapshot shown, int end) {
+        Snapshot base;
+        if (shown != null && shown.segmentCount <= end && shown.segmentCount <= segmentCount) {
+            base = shown;
+        } else if (latest != null && latest.segmentCount <= end) {
+            base = latest;
+        } else {
+            base = null;
+        }
+        int baseCount = base != null ? base.segmentCount : 0;
+        int[] baseSegments = base != null ? base.segments : new int[0];
+        int baseSize = base != null ? base.size : 0;
+        Integer[] newer = new Integer[end - baseCount];
+        for (int i = 0; i < newer.length; i++) {
+            newer[i] = baseCount + i;
+        }
+        Arrays.sort(newer, this::compareSegments);
+
+        int[] segments = new int[end];
+        int[] starts = new int[end];
+        int[] rows = new int[end];
+        int[] added = new int[newer.length];
+        int from = 0;
+        int place = 0;
+        int shift = 0;
+        for (int i = 0; i < newer.length; i++) {
+            int segment = newer[i];
+            int to = placeOf(baseSegments, from, segment);
+            copy(base, from, to, segments, starts, rows, place, shift);
+            place += to - from;
+            from = to;
+            segments[place] = segment;
+            starts[place] = (from < baseCount ? base.starts[from] : baseSize) + shift;
+            rows[place] = segmentRows[segment];
+            added[i] = place;
+            shift += segmentLengths[segment];
+            place++;
+        }
+        copy(base, from, baseCount, segments, starts, rows, place, shift);
+        latest = new Snapshot(segments, starts, rows, baseSize + shift, baseCount, added);
+        return latest;
+    }
+
+    /**
+     * @return The first place at or after {@code from} whose segment goes after {@code segment}
+     */
+    private int placeOf(int[] segments, int from, int segment) {
+        int low = from;
+        int high = segments.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareSegments(segments[middle], segment) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copy places {@code [from, to)} of {@code base} to {@code place}, moving their
+     * positions by {@code shift}.
+     */
+    private static void copy(Snapshot base, int from, int to, int[] segments, int[] starts, int[] rows,
+                             int place, int shift) {
+        int count = to - from;
+        if (count == 0) {
+            return;
+        }
+        System.arraycopy(base.segments, from, segments, place, count);
+        System.arraycopy(base.rows, from, rows, place, count);
+        for (int i = 0; i < count; i++) {
+            starts[place + i] = base.starts[from + i] + shift;
+        }
+    }
+
+    private Snapshot taken(Snapshot taken) {
+        lastTaken = System.currentTimeMillis();
+        if (taken.size > shownRows) {
+            shownRows = taken.size;
+            notifyAll();
+        }
+        return taken;
+    }
+
+    /**
+     * Whether a consumer is watching the matches, and workers should wait for it.
+     */
+    synchronized void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+        lastTaken = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Wait while a watching consumer is more than {@link #MAX_UNSHOWN} matches behind, so a
+     * worker does not outrun the list. Returns once it catches up, stops watching or takes
+     * nothing for a while, or {@code cancelled} is set.
+     */
+    synchronized void awaitDemand(AtomicBoolean cancelled) {
+        while (throttled && !closed && !cancelled.get() && size - shownRows > MAX_UNSHOWN
+                && System.currentTimeMillis() - lastTaken < STALL_MILLIS) {
+            try {
+                wait(DEMAND_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return A new view of the match in {@code row}
+     */
+    synchronized GrepView.Data getRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        }
+        GrepView.Data[] one = new GrepView.Data[1];
+        readRows(row, one);
+        return one[0];
+    }
+
+    /**
+     * Read matches in the order they were stored, with one disk read once they are
+     * spilled.
+     * @param from Row of the first match
+     * @param out Receives a new view of each match from {@code from} on
+     * @return Number of matches read; fewer than requested at the end of the store, or if
+     *         the spill cannot be read
+     */
+    synchronized int readRows(int from, GrepView.Data[] out) {
+        int count = Math.max(0, Math.min(out.length, size - from));
+        if (spill == null) {
+            for (int i = 0; i < count; i++) {
+                int row = from + i;
+                out[i] = view(row, fileIndexes[row], lines[row], texts[row], errors[row], offsets[row], ranges[row]);
+            }
+            return count;
+        }
+        if (page == null || page.lines.length < count) {
+            page = new ResultSpill.Rows(count);
+        }
+        try {
+            spill.read(from, count, page, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        for (int i = 0; i < count; i++) {
+            out[i] = view(from + i, page.files[i], page.lines[i], page.texts[i], page.errors[i], page.offsets[i],
+                    page.ranges[i]);
+            page.texts[i] = null;
+            page.ranges[i] = null;
+        }
+        return count;
+    }
+
+    private GrepView.Data view(int row, int file, int line, byte[] text, int errorCount, int offset,
+                               int[] matchRanges) {
+        FileRecord record = files.get(file);
+        GrepView.Data data = new GrepView.Data(record.uri, record.displayName, line,
+                new String(text, StandardCharsets.UTF_8), errorCount, offset, matchRanges);
+        data.mId = row;
+        return data;
+    }
+
+    /**
+     * Delete the spilled matches. The store reads as empty afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        size = 0;
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+        fileIndexes = new int[0];
+        lines = new int[0];
+        errors = new int[0];
+        offsets = new int[0];
+        texts = new byte[0][];
+        ranges = new int[0][];
+        segmentCount = 0;
+        latest = null;
+        notifyAll();
+    }
+}
@@ -1,7 +1,6 @@
 package dev.kappa.agrep_again;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -43,7 +42,6 @@ public class Search extends AppCompatActivity implements GrepView.Callback
 {
     private GrepView mGrepView;
     private GrepView.GrepAdapter mAdapter;
-    private ArrayList<GrepView.Data>	mData ;
     private String mQuery;
     private Pattern mPattern;
 
@@ -110,8 +108,7 @@ public class Search extends AppCompatActivity implements GrepView.Callback
         }
 
         mGrepView = findViewById(R.id.DicView01);
-        mData = new ArrayList<>();
-        mAdapter = new GrepView.GrepAdapter(getApplicationContext(), R.layout.list_row, R.id.DicView01, mData);
+        mAdapter = new GrepView.GrepAdapter(getApplicationContext());
         mGrepView.setAdapter( mAdapter );
         mGrepView.setCallback(this);
 
@@ -145,8 +142,8 @@ public class Search extends AppCompatActivity implements GrepView.Callback
                 }
 
                 if ( Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState() ) ) {
-                    mData.clear();
-                    mAdapter.setFormat( mPattern , mPrefs.mHighlightFg , mPrefs.mHighlightBg , mPrefs.mFontSize );
+                    mAdapter.setResults(null);
+                    mAdapter.setFormat( mPrefs.mHighlightFg , mPrefs.mHighlightBg , mPrefs.mFontSize );
                     beginSearch();
                 }
             }else{
@@ -239,13 +236,12 @@ public class Search extends AppCompatActivity implements GrepView.Callback
             if (state.progress != null) {
                 mSearchStatus.setText(getString(R.string.progress, state.progress.query, state.progress.filesProcessed));
 
-                // Add new matches to the list
-                if (state.progress.newMatches != null && !state.progress.newMatches.isEmpty()) {
-                    synchronized (mData) {
-                        mData.addAll(state.progress.newMatches);
-                        mAdapter.notifyDataSetChanged();
-                        mGrepView.setSelection(mData.size() - 1);
+                // Show the matches stored since the last update, at most once per frame
+                if (state.progress.results != null) {
+                    if (mAdapter.getResults() != state.progress.results) {
+                        mAdapter.setResults(state.progress.results);
                     }
+                    mGrepView.refreshOnNextFrame();
                 }
             }
         } else if (state.summary != null) {
@@ -253,12 +249,19 @@ public class Search extends AppCompatActivity implements GrepView.Callback
             mSearchStatusContainer.setVisibility(View.GONE);
             mSearchProgress.setVisibility(View.GONE);
 
-            synchronized (mData) {
-                Collections.sort(mData, new GrepView.Data());
-                mAdapter.notifyDataSetChanged();
+            // Already in order; only the rows stored since the last frame are added
+            if (mAdapter.getResults() != state.summary.results) {
+                mAdapter.setResults(state.summary.results);
+            }
+            mGrepView.refreshOnNextFrame();
+            if (state.summary.binaryFilesSkipped > 0) {
+                Toast.makeText(getApplicationContext(),
+                        getResources().getQuantityString(R.plurals.grep_finished_binary,
+                                state.summary.binaryFilesSkipped, state.summary.binaryFilesSkipped),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(getApplicationContext(), R.string.grep_finished, Toast.LENGTH_LONG).show();
             }
-            mGrepView.setSelection(0);
-            Toast.makeText(getApplicationContext(), R.string.grep_finished, Toast.LENGTH_LONG).show();
         } else if (state.errorMessage != null) {
             // Search error
             mSearchStatusContainer.setVisibility(View.GONE);
@@ -446,7 +449,7 @@ public class Search extends AppCompatActivity implements GrepView.Callback
     @Override
     public void onGrepItemClicked(int position)
     {
-        GrepView.Data data = (GrepView.Data) mGrepView.getAdapter().getItem(position);
+        GrepView.Data data = mAdapter.getItem(position);
 
         Intent it = new Intent(this,TextViewer.class);
 
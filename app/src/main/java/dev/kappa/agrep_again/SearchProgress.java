@@ -1,8 +1,5 @@
 package dev.kappa.agrep_again;
 
-import java.util.Collections;
-import java.util.List;
-
 /**
  * Represents incremental progress during a search operation.
  */
@@ -10,12 +7,13 @@ public class SearchProgress {
     public final String query;
     public final int filesProcessed;
     public final int matchesFound;
-    public final List<GrepView.Data> newMatches;
+    /** Every match found so far; null before the search starts. */
+    public final ResultStore results;
 
-    public SearchProgress(String query, int filesProcessed, int matchesFound, List<GrepView.Data> newMatches) {
+    public SearchProgress(String query, int filesProcessed, int matchesFound, ResultStore results) {
         this.query = query;
         this.filesProcessed = filesProcessed;
         this.matchesFound = matchesFound;
-        this.newMatches = newMatches != null ? newMatches : Collections.emptyList();
+        this.results = results;
     }
 }
@@ -1,18 +1,98 @@
 package dev.kappa.agrep_again;
 
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
  * Represents a search request with query pattern and preferences.
  */
 public class SearchRequest {
+    /** Shorter required literals reject too few lines to be worth testing. */
+    private static final int MIN_REQUIRED_LITERAL = 2;
+
     public final String query;
     public final Pattern pattern;
     public final Prefs prefs;
+    /** Matcher for a non-regex query, or null if {@link #pattern} has to be used. */
+    public final LiteralSearch literal;
+    /** Approximate matcher if errors are allowed, otherwise null. Takes precedence over {@link #literal}. */
+    public final BitapMatcher fuzzy;
+    /**
+     * Literals of which every matching line contains at least one, or null if there are none.
+     * Does not apply to {@link #fuzzy} searches.
+     */
+    public final List<String> requiredLiterals;
+    /** Cheap test for {@link #requiredLiterals} to run before {@link #pattern}, or null. */
+    public final LiteralSearch prefilter;
+    /**
+     * {@link #pattern} in MULTILINE mode, for finding candidate lines in a block of many
+     * lines, or null if the pattern can behave differently on a single line.
+     */
+    public final Pattern windowPattern;
+
+    /**
+     * Whether every match of the pattern within a line is also a match at the same place in
+     * a block of lines, with ^ and $ matching at line breaks. Input boundaries, lookaround
+     * and inline flags look past the line, and atomic groups and possessive quantifiers may
+     * run past it without backing off, so they are ruled out.
+     */
+    static boolean isLineLocal(String regex) {
+        int len = regex.length();
+        boolean afterQuantifier = false;
+        for (int i = 0; i < len; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < len) {
+                char next = regex.charAt(++i);
+                if (next == 'A' || next == 'z' || next == 'Z' || next == 'G') {
+                    return false;
+                }
+                afterQuantifier = false;
+                continue;
+            }
+            if (c == '+' && afterQuantifier) {
+                return false;
+            }
+            if (c == '(' && i + 1 < len && regex.charAt(i + 1) == '?') {
+                char kind = i + 2 < len ? regex.charAt(i + 2) : 0;
+                boolean namedGroup = kind == '<' && i + 3 < len && Character.isLetter(regex.charAt(i + 3));
+                if (kind != ':' && !namedGroup) {
+                    return false;
+                }
+            }
+            afterQuantifier = c == '*' || c == '+' || c == '?' || c == '}';
+        }
+        return true;
+    }
 
     public SearchRequest(String query, Pattern pattern, Prefs prefs) {
         this.query = query;
         this.pattern = pattern;
         this.prefs = prefs;
+        if (prefs.mRegularExpression) {
+            this.literal = null;
+        } else if (query.indexOf(' ') >= 0) {
+            this.literal = AhoCorasickMatcher.compile(query, prefs.mIgnoreCase);
+        } else {
+            this.literal = LiteralMatcher.compile(query, prefs.mIgnoreCase);
+        }
+        if (!prefs.mRegularExpression && prefs.mMaxErrors > 0) {
+            this.fuzzy = BitapMatcher.compile(query, prefs.mMaxErrors, prefs.mIgnoreCase);
+        } else {
+            this.fuzzy = null;
+        }
+        this.requiredLiterals = QueryLiterals.longestPerAlternative(
+                QueryLiterals.extract(query, prefs.mRegularExpression,
+                        prefs.mRegularExpression ? MIN_REQUIRED_LITERAL : 1));
+        if (!prefs.mRegularExpression || requiredLiterals == null) {
+            this.prefilter = null;
+        } else if (requiredLiterals.size() == 1) {
+            this.prefilter = LiteralMatcher.compile(requiredLiterals.get(0), prefs.mIgnoreCase);
+        } else {
+            this.prefilter = AhoCorasickMatcher.compile(
+                    requiredLiterals.toArray(new String[0]), prefs.mIgnoreCase);
+        }
+        this.windowPattern = isLineLocal(pattern.pattern())
+                ? Pattern.compile(pattern.pattern(), pattern.flags() | Pattern.MULTILINE)
+                : null;
     }
 }
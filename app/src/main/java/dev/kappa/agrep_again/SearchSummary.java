@@ -1,8 +1,5 @@
 package dev.kappa.agrep_again;
 
-import java.util.Collections;
-import java.util.List;
-
 /**
  * Represents the final summary of a completed search operation.
  */
@@ -10,15 +7,22 @@ public class SearchSummary {
     public final String query;
     public final int totalFilesProcessed;
     public final int totalMatchesFound;
-    public final List<GrepView.Data> allMatches;
+    public final ResultStore results;
     public final long durationMillis;
+    /** Number of files whose matches were reused from an earlier run of the same query. */
+    public final int filesFromCache;
+    /** Number of binary files that were skipped without being searched. */
+    public final int binaryFilesSkipped;
 
     public SearchSummary(String query, int totalFilesProcessed, int totalMatchesFound,
-                        List<GrepView.Data> allMatches, long durationMillis) {
+                        ResultStore results, long durationMillis, int filesFromCache,
+                        int binaryFilesSkipped) {
         this.query = query;
         this.totalFilesProcessed = totalFilesProcessed;
         this.totalMatchesFound = totalMatchesFound;
-        this.allMatches = allMatches != null ? allMatches : Collections.emptyList();
+        this.results = results != null ? results : new ResultStore();
         this.durationMillis = durationMillis;
+        this.filesFromCache = filesFromCache;
+        this.binaryFilesSkipped = binaryFilesSkipped;
     }
 }
@@ -8,13 +8,34 @@ import androidx.lifecycle.ViewModel;
 
 /**
  * ViewModel for managing search operations and UI state.
+ *
+ * <p>The UI state only carries counts and the {@link ResultStore} of the search, which
+ * holds every match; a posted state that replaces one not yet seen loses nothing. The list
+ * takes the matches from the store itself, and while it is watching, the search waits for
+ * it whenever it gets too far ahead.</p>
  */
 public class SearchViewModel extends ViewModel {
     private final MutableLiveData<SearchUiState> uiState;
     private GrepEngine grepEngine;
+    /** Matches of the latest search, closed when the next one starts. */
+    private ResultStore results;
+    /** Set while the UI state is observed by a started screen */
+    private boolean watched;
+    /** Changed by every search and cancel, so a late callback of an earlier search is ignored */
+    private int generation;
 
     public SearchViewModel() {
-        this.uiState = new MutableLiveData<>(SearchUiState.idle());
+        this.uiState = new MutableLiveData<SearchUiState>(SearchUiState.idle()) {
+            @Override
+            protected void onActive() {
+                setWatched(true);
+            }
+
+            @Override
+            protected void onInactive() {
+                setWatched(false);
+            }
+        };
     }
 
     public LiveData<SearchUiState> getUiState() {
@@ -40,6 +61,8 @@ public class SearchViewModel extends ViewModel {
             return;
         }
 
+        releaseResults(null);
+        final int searchGeneration = nextGeneration();
         uiState.setValue(SearchUiState.searching(new SearchProgress(
             request.query,
             0,
@@ -50,17 +73,23 @@ public class SearchViewModel extends ViewModel {
         grepEngine.search(request, new GrepEngine.ProgressCallback() {
             @Override
             public void onProgress(SearchProgress progress) {
-                uiState.postValue(SearchUiState.searching(progress));
+                if (acceptResults(searchGeneration, progress.results)) {
+                    uiState.postValue(SearchUiState.searching(progress));
+                }
             }
 
             @Override
             public void onComplete(SearchSummary summary) {
-                uiState.postValue(SearchUiState.completed(summary));
+                if (acceptResults(searchGeneration, summary.results)) {
+                    uiState.postValue(SearchUiState.completed(summary));
+                }
             }
 
             @Override
             public void onError(String error) {
-                uiState.postValue(SearchUiState.error(error));
+                if (isCurrent(searchGeneration)) {
+                    uiState.postValue(SearchUiState.error(error));
+                }
             }
         });
     }
@@ -69,15 +98,69 @@ public class SearchViewModel extends ViewModel {
      * Cancel the current search operation.
      */
     public void cancelSearch() {
+        nextGeneration();
         if (grepEngine != null) {
             grepEngine.cancel();
         }
         uiState.setValue(SearchUiState.idle());
     }
 
+    private synchronized int nextGeneration() {
+        return ++generation;
+    }
+
+    private synchronized boolean isCurrent(int searchGeneration) {
+        return searchGeneration == generation;
+    }
+
+    /**
+     * Take the matches of the search started as {@code searchGeneration}, unless a later
+     * search or a cancel has replaced it.
+     * @return false if the search is no longer current
+     */
+    private synchronized boolean acceptResults(int searchGeneration, ResultStore current) {
+        if (searchGeneration != generation) {
+            // Never shown, or closed already
+            if (current != null && current != results) {
+                current.close();
+            }
+            return false;
+        }
+        releaseResults(current);
+        return true;
+    }
+
+    /**
+     * Close the matches of an earlier search, which may have spilled to disk, once
+     * {@code current} replaces them.
+     */
+    private synchronized void releaseResults(ResultStore current) {
+        if (results == current) {
+            return;
+        }
+        if (results != null) {
+            results.close();
+        }
+        results = current;
+        if (current != null) {
+            current.setThrottled(watched);
+        }
+    }
+
+    /**
+     * A search only waits for the list while it is on screen.
+     */
+    private synchronized void setWatched(boolean watched) {
+        this.watched = watched;
+        if (results != null) {
+            results.setThrottled(watched);
+        }
+    }
+
     @Override
     protected void onCleared() {
         super.onCleared();
+        releaseResults(null);
         if (grepEngine != null) {
             grepEngine.shutdown();
         }
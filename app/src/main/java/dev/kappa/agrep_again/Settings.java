@@ -25,6 +25,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.checkbox.MaterialCheckBox;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.google.android.material.slider.Slider;
 import com.google.android.material.switchmaterial.SwitchMaterial;
 import com.google.android.material.textfield.MaterialAutoCompleteTextView;
 import com.google.android.material.textfield.TextInputEditText;
@@ -44,6 +45,9 @@ public class Settings extends AppCompatActivity {
     private ArrayAdapter<String> mRecentAdapter;
     private SwitchMaterial mRegularExpressionSwitch;
     private SwitchMaterial mIgnoreCaseSwitch;
+    private Slider mMaxErrorsSlider;
+    private SwitchMaterial mTextFilesOnlySwitch;
+    private Slider mMaxFileSizeSlider;
     private ActivityResultLauncher<Uri> directoryPickerLauncher;
 
     @Override
@@ -111,6 +115,31 @@ public class Settings extends AppCompatActivity {
             mPrefs.savePrefs(Settings.this);
         });
 
+        mMaxErrorsSlider = findViewById(R.id.max_errors);
+        mMaxErrorsSlider.setValue(Math.max(0, Math.min(mPrefs.mMaxErrors, (int) mMaxErrorsSlider.getValueTo())));
+        mMaxErrorsSlider.addOnChangeListener((slider, value, fromUser) -> {
+            if (fromUser) {
+                mPrefs.mMaxErrors = (int) value;
+                mPrefs.savePrefs(Settings.this);
+            }
+        });
+
+        mTextFilesOnlySwitch = findViewById(R.id.checktextonly);
+        mTextFilesOnlySwitch.setChecked(mPrefs.mTextFilesOnly);
+        mTextFilesOnlySwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            mPrefs.mTextFilesOnly = isChecked;
+            mPrefs.savePrefs(Settings.this);
+        });
+
+        mMaxFileSizeSlider = findViewById(R.id.max_file_size);
+        mMaxFileSizeSlider.setValue(Math.max(0, Math.min(mPrefs.mMaxFileSizeMb, (int) mMaxFileSizeSlider.getValueTo())));
+        mMaxFileSizeSlider.addOnChangeListener((slider, value, fromUser) -> {
+            if (fromUser) {
+                mPrefs.mMaxFileSizeMb = (int) value;
+                mPrefs.savePrefs(Settings.this);
+            }
+        });
+
         final RecyclerView dirRecycler = findViewById(R.id.directory_list);
         dirRecycler.setLayoutManager(new LinearLayoutManager(this));
         mDirAdapter = new CheckedStringAdapter(mPrefs.mDirList,
@@ -13,8 +13,6 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
-import org.mozilla.universalchardet.UniversalDetector;
-
 import android.content.ActivityNotFoundException;
 import android.content.ClipData;
 import android.content.ClipboardManager;
@@ -24,6 +22,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.util.Log;
@@ -152,6 +151,26 @@ public class TextViewer extends AppCompatActivity implements OnItemLongClickList
         }
         return uri.toString();
     }
+    /**
+     * @return The size and last-modified time of a document, -1 and 0 where unknown
+     */
+    private long[] queryDocumentStat(Uri uri) {
+        long[] stat = {-1, 0};
+        String[] projection = {OpenableColumns.SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+        try (Cursor cursor = getContentResolver().query(uri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                for (int i = 0; i < projection.length; i++) {
+                    int column = cursor.getColumnIndex(projection[i]);
+                    if (column >= 0 && !cursor.isNull(column)) {
+                        stat[i] = cursor.getLong(column);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to query document size", e);
+        }
+        return stat;
+    }
     class TextLoadTask extends AsyncTask<Uri, Integer, Boolean >{
         int mOffsetForLine=-1;
 
@@ -174,14 +193,21 @@ public class TextViewer extends AppCompatActivity implements OnItemLongClickList
             InputStream rawStream = null;
             BufferedInputStream is = null;
             BufferedReader br = null;
+            long size = -1;
+            long modified = 0;
             try {
                 if ("file".equals(target.getScheme()) || target.getScheme() == null) {
                     File f = new File(target.getPath());
                     if (!f.exists()) {
                         return false;
                     }
+                    size = f.length();
+                    modified = f.lastModified();
                     rawStream = new FileInputStream(f);
                 } else {
+                    long[] stat = queryDocumentStat(target);
+                    size = stat[0];
+                    modified = stat[1];
                     rawStream = getContentResolver().openInputStream(target);
                     if (rawStream == null) {
                         return false;
@@ -192,18 +218,14 @@ public class TextViewer extends AppCompatActivity implements OnItemLongClickList
                 is.mark(65536);
 
                 String encode;
-                // Determine the character encoding
-                UniversalDetector detector = new UniversalDetector(null);
+                // Determine the character encoding, unless an earlier search or view did
                 try{
-                    int nread;
                     byte[] buff = new byte[4096];
-                    if ((nread = is.read(buff)) > 0 ) {
-                        detector.handleData(buff, 0, nread);
-                    }
-                    detector.dataEnd();
-                    encode = detector.getDetectedCharset();
+                    int nread = Math.max(is.read(buff), 0);
+                    CharsetCache cache = CharsetCache.get(getApplicationContext());
+                    encode = cache.detect(target.toString(), size, modified, buff, nread);
+                    cache.save();
                     is.reset();
-                    detector.reset();
                 }
                 catch (IOException e) {
                     e.printStackTrace();
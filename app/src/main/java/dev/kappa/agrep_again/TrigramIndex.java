@@ -0,0 +1,564 @@
+package dev.kappa.agrep_again;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent trigram index over the documents of one tree URI.
+ *
+ * <p>Trigrams are taken per line from case-folded text and hashed into {@link #BUCKETS}
+ * buckets. Each bucket has a posting list of document ordinals, sorted and stored as
+ * delta-encoded varints. A query only opens documents whose postings contain every
+ * trigram of some required literal; hash collisions can add false candidates, which the
+ * regular matcher then rejects.</p>
+ *
+ * <p>File layout: header, document table, postings, bucket offset table, and a trailing
+ * pointer to the offset table.</p>
+ */
+public final class TrigramIndex implements Closeable {
+    private static final int MAGIC = 0x41475449; // "AGTI"
+    private static final int VERSION = 1;
+    static final int BUCKET_BITS = 16;
+    static final int BUCKETS = 1 << BUCKET_BITS;
+    /** Buckets are inverted in this many slices to bound memory while building. */
+    private static final int PARTITIONS = 64;
+    private static final int BUCKETS_PER_PARTITION = BUCKETS / PARTITIONS;
+
+    private final RandomAccessFile file;
+    private final String[] documentIds;
+    private final long[] sizes;
+    private final long[] lastModified;
+    private final long[] offsets;
+    private final Map<String, Integer> ordinals;
+
+    private TrigramIndex(RandomAccessFile file, String[] documentIds, long[] sizes,
+                         long[] lastModified, long[] offsets) {
+        this.file = file;
+        this.documentIds = documentIds;
+        this.sizes = sizes;
+        this.lastModified = lastModified;
+        this.offsets = offsets;
+        this.ordinals = new HashMap<>(documentIds.length * 2);
+        for (int i = 0; i < documentIds.length; i++) {
+            ordinals.put(documentIds[i], i);
+        }
+    }
+
+    /**
+     * Open an index file.
+     * @return The index, or null if it does not exist or cannot be read
+     */
+    public static TrigramIndex open(File indexFile) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(indexFile, "r");
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != BUCKET_BITS) {
+                    raf.close();
+                    return null;
+                }
+                int count = in.readInt();
+                String[] ids = new String[count];
+                long[] sizes = new long[count];
+                long[] modified = new long[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = in.readUTF();
+                    sizes[i] = in.readLong();
+                    modified[i] = in.readLong();
+                }
+                raf.seek(raf.length() - 8);
+                long tablePosition = raf.readLong();
+                if (tablePosition < 0 || tablePosition + (BUCKETS + 1) * 8L + 8 != raf.length()) {
+                    raf.close();
+                    return null;
+                }
+                raf.seek(tablePosition);
+                byte[] table = new byte[(BUCKETS + 1) * 8];
+                raf.readFully(table);
+                DataInputStream tableIn = new DataInputStream(new ByteArrayInputStream(table));
+                long[] offsets = new long[BUCKETS + 1];
+                for (int i = 0; i <= BUCKETS; i++) {
+                    offsets[i] = tableIn.readLong();
+                }
+                return new TrigramIndex(raf, ids, sizes, modified, offsets);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    public int documentCount() {
+        return documentIds.length;
+    }
+
+    /** @return The ordinal of a document, or -1 if it is not indexed */
+    public int ordinalOf(String documentId) {
+        Integer ordinal = ordinals.get(documentId);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /** @return true if the indexed copy of the document has the given size and timestamp */
+    public boolean isFresh(int ordinal, long size, long modified) {
+        return sizes[ordinal] == size && lastModified[ordinal] == modified;
+    }
+
+    /**
+     * Compute the documents that may contain a match.
+     * @param literals Required literals as returned by {@link QueryLiterals#extract}
+     * @return Candidate ordinals, or null if every document is a candidate
+     */
+    public BitSet candidates(List<List<String>> literals) throws IOException {
+        if (literals == null) {
+            return null;
+        }
+        BitSet result = new BitSet(documentIds.length);
+        for (List<String> alternative : literals) {
+            BitSet matching = null;
+            for (String literal : alternative) {
+                for (int i = 0; i + 3 <= literal.length(); i++) {
+                    int bucket = bucket(fold(literal.charAt(i)), fold(literal.charAt(i + 1)),
+                            fold(literal.charAt(i + 2)));
+                    BitSet posting = postings(bucket);
+                    if (matching == null) {
+                        matching = posting;
+                    } else {
+                        matching.and(posting);
+                    }
+                }
+            }
+            if (matching == null) {
+                return null;
+            }
+            result.or(matching);
+        }
+        return result;
+    }
+
+    private BitSet postings(int bucket) throws IOException {
+        int length = (int) (offsets[bucket + 1] - offsets[bucket]);
+        byte[] data = new byte[length];
+        synchronized (file) {
+            file.seek(offsets[bucket]);
+            file.readFully(data);
+        }
+        BitSet set = new BitSet(documentIds.length);
+        int pos = 0;
+        int ordinal = -1;
+        while (pos < length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            ordinal += delta;
+            set.set(ordinal);
+        }
+        return set;
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Case fold a character the way {@code Pattern.CASE_INSENSITIVE|UNICODE_CASE} compares them.
+     */
+    static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    static int bucket(char a, char b, char c) {
+        long trigram = ((long) a << 32) | ((long) b << 16) | c;
+        return (int) ((trigram * 0x9E3779B97F4A7C15L) >>> (64 - BUCKET_BITS));
+    }
+
+    /**
+     * Per-worker set of the trigram buckets seen in one document.
+     */
+    public static final class Collector {
+        private final long[] bits = new long[BUCKETS / 64];
+
+        public void addLine(CharSequence line) {
+            int len = line.length();
+            if (len < 3) {
+                return;
+            }
+            char a = fold(line.charAt(0));
+            char b = fold(line.charAt(1));
+            for (int i = 2; i < len; i++) {
+                char c = fold(line.charAt(i));
+                int bucket = bucket(a, b, c);
+                bits[bucket >>> 6] |= 1L << bucket;
+                a = b;
+                b = c;
+            }
+        }
+
+        /**
+         * Add every line of {@code text[start, end)}; trigrams do not span CR or LF.
+         */
+        public void addLines(CharSequence text, int start, int end) {
+            int run = 0;
+            char a = 0;
+            char b = 0;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    run = 0;
+                    continue;
+                }
+                c = fold(c);
+                if (++run >= 3) {
+                    int bucket = bucket(a, b, c);
+                    bits[bucket >>> 6] |= 1L << bucket;
+                }
+                a = b;
+                b = c;
+            }
+        }
+
+        int[] buckets() {
+            int count = 0;
+            for (long word : bits) {
+                count += Long.bitCount(word);
+            }
+            int[] result = new int[count];
+            int n = 0;
+            for (int i = 0; i < bits.length; i++) {
+                long word = bits[i];
+                while (word != 0) {
+                    result[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return result;
+        }
+
+        public void clear() {
+            Arrays.fill(bits, 0L);
+        }
+    }
+
+    /**
+     * Builds a new index file. Documents are either added with freshly collected trigrams or
+     * carried over unchanged from a previous index. Forward records are spilled to one file
+     * per bucket partition, and {@link #commit} inverts one partition at a time.
+     */
+    public static final class Writer {
+        private final File workDir;
+        private final TrigramIndex previous;
+        private final DataOutputStream[] partitions = new DataOutputStream[PARTITIONS];
+        private final List<String> documentIds = new ArrayList<>();
+        private final List<long[]> documentStats = new ArrayList<>();
+        /** Previous ordinal for carried documents, -1 for added ones; indexed by new ordinal. */
+        private int[] carriedFrom = new int[64];
+        private int added;
+        private int carried;
+
+        /**
+         * @param workDir Scratch directory for partition files; created if missing
+         * @param previous The index being replaced, or null
+         */
+        public Writer(File workDir, TrigramIndex previous) throws IOException {
+            if (!workDir.isDirectory() && !workDir.mkdirs()) {
+                throw new IOException("Cannot create " + workDir);
+            }
+            this.workDir = workDir;
+            this.previous = previous;
+            for (int p = 0; p < PARTITIONS; p++) {
+                partitions[p] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(partitionFile(p)), 8192));
+            }
+        }
+
+        private File partitionFile(int partition) {
+            return new File(workDir, "p" + partition);
+        }
+
+        private int nextOrdinal(String documentId, long size, long modified, int from) {
+            int ordinal = documentIds.size();
+            documentIds.add(documentId);
+            documentStats.add(new long[]{size, modified});
+            if (ordinal == carriedFrom.length) {
+                carriedFrom = Arrays.copyOf(carriedFrom, ordinal * 2);
+            }
+            carriedFrom[ordinal] = from;
+            return ordinal;
+        }
+
+        /**
+         * Add a document with the trigrams collected while scanning it.
+         */
+        public synchronized void addDocument(String documentId, long size, long modified,
+                                             Collector collector) throws IOException {
+            int ordinal = nextOrdinal(documentId, size, modified, -1);
+            int[] buckets = collector.buckets();
+            int start = 0;
+            while (start < buckets.length) {
+                int partition = buckets[start] / BUCKETS_PER_PARTITION;
+                int end = start;
+                while (end < buckets.length && buckets[end] / BUCKETS_PER_PARTITION == partition) {
+                    end++;
+                }
+                DataOutputStream out = partitions[partition];
+                writeVarint(out, ordinal);
+                writeVarint(out, end - start);
+                for (int i = start; i < end; i++) {
+                    writeVarint(out, buckets[i] % BUCKETS_PER_PARTITION);
+                }
+                start = end;
+            }
+            added++;
+        }
+
+        /**
+         * Keep an unchanged document from the previous index.
+         */
+        public synchronized void carryOver(int previousOrdinal) {
+            nextOrdinal(previous.documentIds[previousOrdinal], previous.sizes[previousOrdinal],
+                    previous.lastModified[previousOrdinal], previousOrdinal);
+            carried++;
+        }
+
+        /** @return true if the new index would differ from the previous one */
+        public synchronized boolean hasChanges() {
+            return previous == null ? added > 0 : added > 0 || carried != previous.documentCount();
+        }
+
+        /**
+         * Write the index to {@code target}, replacing it atomically, and delete scratch files.
+         */
+        public synchronized void commit(File target) throws IOException {
+            for (DataOutputStream out : partitions) {
+                out.close();
+            }
+            int count = documentIds.size();
+            int[] remap = null;
+            if (previous != null) {
+                remap = new int[previous.documentCount()];
+                Arrays.fill(remap, -1);
+                for (int ordinal = 0; ordinal < count; ordinal++) {
+                    if (carriedFrom[ordinal] >= 0) {
+                        remap[carriedFrom[ordinal]] = ordinal;
+                    }
+                }
+            }
+
+            File tmp = new File(target.getPath() + ".tmp");
+            long[] offsets = new long[BUCKETS + 1];
+            try (CountingOutputStream counter = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+                DataOutputStream out = new DataOutputStream(counter);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(BUCKET_BITS);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeUTF(documentIds.get(i));
+                    out.writeLong(documentStats.get(i)[0]);
+                    out.writeLong(documentStats.get(i)[1]);
+                }
+                for (int p = 0; p < PARTITIONS; p++) {
+                    int[][] postings = invertPartition(p, remap);
+                    for (int b = 0; b < BUCKETS_PER_PARTITION; b++) {
+                        int bucket = p * BUCKETS_PER_PARTITION + b;
+                        offsets[bucket] = counter.count;
+                        int[] ordinals = postings[b];
+                        int previousOrdinal = -1;
+                        for (int ordinal : ordinals) {
+                            writeVarint(out, ordinal - previousOrdinal);
+                            previousOrdinal = ordinal;
+                        }
+                    }
+                }
+                long tablePosition = counter.count;
+                offsets[BUCKETS] = tablePosition;
+                for (long offset : offsets) {
+                    out.writeLong(offset);
+                }
+                out.writeLong(tablePosition);
+                out.flush();
+            } catch (IOException e) {
+                tmp.delete();
+                throw e;
+            } finally {
+                deleteScratch();
+            }
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                throw new IOException("Cannot replace " + target);
+            }
+        }
+
+        private int[][] invertPartition(int partition, int[] remap) throws IOException {
+            int[] counts = new int[BUCKETS_PER_PARTITION];
+            int[][] carriedPostings = new int[BUCKETS_PER_PARTITION][];
+            if (previous != null) {
+                for (int b = 0; b < BUCKETS_PER_PARTITION; b++) {
+                    BitSet old = previous.postings(partition * BUCKETS_PER_PARTITION + b);
+                    int[] kept = new int[old.cardinality()];
+                    int n = 0;
+                    for (int i = old.nextSetBit(0); i >= 0; i = old.nextSetBit(i + 1)) {
+                        if (remap[i] >= 0) {
+                            kept[n++] = remap[i];
+                        }
+                    }
+                    carriedPostings[b] = Arrays.copyOf(kept, n);
+                    counts[b] = n;
+                }
+            }
+
+            File file = partitionFile(partition);
+            // First pass counts entries per bucket so the arrays can be sized exactly
+            try (DataInputStream in = openPartition(file)) {
+                while (readVarintOrEof(in) >= 0) {
+                    int n = readVarint(in);
+                    for (int i = 0; i < n; i++) {
+                        counts[readVarint(in)]++;
+                    }
+                }
+            }
+            int[][] postings = new int[BUCKETS_PER_PARTITION][];
+            int[] fill = new int[BUCKETS_PER_PARTITION];
+            for (int b = 0; b < BUCKETS_PER_PARTITION; b++) {
+                postings[b] = new int[counts[b]];
+                if (carriedPostings[b] != null) {
+                    System.arraycopy(carriedPostings[b], 0, postings[b], 0, carriedPostings[b].length);
+                    fill[b] = carriedPostings[b].length;
+                }
+            }
+            try (DataInputStream in = openPartition(file)) {
+                int ordinal;
+                while ((ordinal = readVarintOrEof(in)) >= 0) {
+                    int n = readVarint(in);
+                    for (int i = 0; i < n; i++) {
+                        int b = readVarint(in);
+                        postings[b][fill[b]++] = ordinal;
+                    }
+                }
+            }
+            for (int[] ordinals : postings) {
+                Arrays.sort(ordinals);
+            }
+            return postings;
+        }
+
+        private static DataInputStream openPartition(File file) throws IOException {
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        }
+
+        /**
+         * Discard everything written so far.
+         */
+        public synchronized void abort() {
+            for (DataOutputStream out : partitions) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            deleteScratch();
+        }
+
+        private void deleteScratch() {
+            for (int p = 0; p < PARTITIONS; p++) {
+                partitionFile(p).delete();
+            }
+            workDir.delete();
+        }
+    }
+
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int value = readVarintOrEof(in);
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private static int readVarintOrEof(InputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
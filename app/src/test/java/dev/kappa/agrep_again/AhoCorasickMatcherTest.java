@@ -0,0 +1,110 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class AhoCorasickMatcherTest {
+
+    private static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.MULTILINE;
+
+    /** The alternation Search builds for a non-regex OR query. */
+    private static Pattern orPattern(String query, boolean ignoreCase) {
+        StringBuilder sb = new StringBuilder("(");
+        String[] terms = query.split(" ", -1);
+        for (int i = 0; i < terms.length; i++) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            sb.append(Pattern.quote(terms[i]));
+        }
+        return Pattern.compile(sb.append(')').toString(), ignoreCase ? FLAGS : 0);
+    }
+
+    private static void assertSameAsPattern(String query, String text, boolean ignoreCase) {
+        AhoCorasickMatcher matcher = AhoCorasickMatcher.compile(query, ignoreCase);
+        Matcher m = orPattern(query, ignoreCase).matcher(text);
+        String message = "'" + query + "' in '" + text + "'";
+        assertEquals(message, m.find(0), matcher.contains(text));
+        int from = 0;
+        while (true) {
+            int expected = m.find(from) ? m.start() : -1;
+            int actual = matcher.indexOf(text, from);
+            assertEquals(message + " from " + from, expected, actual);
+            if (expected < 0) {
+                return;
+            }
+            assertEquals(message + " end", m.end(), matcher.matchEnd(text, actual));
+            from = m.end();
+        }
+    }
+
+    @Test
+    public void findsAnyTerm() {
+        AhoCorasickMatcher matcher = AhoCorasickMatcher.compile("foo bar baz", false);
+        assertTrue(matcher.contains("a bar here"));
+        assertTrue(matcher.contains("xbazx"));
+        assertFalse(matcher.contains("ba fo"));
+        assertSameAsPattern("foo bar baz", "foo and bar and baz", false);
+    }
+
+    @Test
+    public void leftmostStartWins() {
+        // "bc" ends first, but "abcdef" starts earlier
+        assertSameAsPattern("bc abcdef", "xabcdefx", false);
+        assertSameAsPattern("he she his hers", "ushers", false);
+    }
+
+    @Test
+    public void firstAlternativeDecidesEnd() {
+        assertSameAsPattern("ab abc", "abcabc", false);
+        assertSameAsPattern("abc ab", "abcabc", false);
+    }
+
+    @Test
+    public void ignoreCase() {
+        assertSameAsPattern("Foo BAR", "fOO bar FOO", true);
+        assertSameAsPattern("σ k", "Σ ς K", true);
+    }
+
+    @Test
+    public void randomTextMatchesPattern() {
+        Random random = new Random(7);
+        String alphabet = "abcABé";
+        for (int round = 0; round < 2000; round++) {
+            int terms = 1 + random.nextInt(5);
+            StringBuilder query = new StringBuilder();
+            for (int t = 0; t < terms; t++) {
+                if (t > 0) {
+                    query.append(' ');
+                }
+                query.append(randomString(random, alphabet, 1 + random.nextInt(4)));
+            }
+            String text = randomString(random, alphabet + " ", random.nextInt(40));
+            assertSameAsPattern(query.toString(), text, false);
+            assertSameAsPattern(query.toString(), text, true);
+        }
+    }
+
+    @Test
+    public void unsupportedQueries() {
+        assertNull(AhoCorasickMatcher.compile("foo  bar", false));
+        assertNull(AhoCorasickMatcher.compile("foo ", false));
+        assertNull(AhoCorasickMatcher.compile("foo 𐐀", true));
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,50 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class BinarySnifferTest {
+
+    private static boolean binary(byte[] data, String charset) {
+        return BinarySniffer.isBinary(data, data.length, charset);
+    }
+
+    @Test
+    public void textIsNotBinary() {
+        byte[] text = "line one\r\n\tindented\f\n\u001b[31mred\u001b[0m\n".getBytes(StandardCharsets.UTF_8);
+        assertFalse(binary(text, "UTF-8"));
+        assertFalse(binary(new byte[0], null));
+    }
+
+    @Test
+    public void nulMeansBinary() {
+        byte[] data = "PNG\u0000header".getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(binary(data, null));
+    }
+
+    @Test
+    public void manyControlCharactersMeanBinary() {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 5 == 0 ? 0x01 : 'a');
+        }
+        assertTrue(binary(data, null));
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 20 == 0 ? 0x01 : 'a');
+        }
+        assertFalse(binary(data, null));
+    }
+
+    @Test
+    public void wideCharsetsAreText() {
+        byte[] utf16 = "text".getBytes(StandardCharsets.UTF_16LE);
+        assertFalse(binary(utf16, "UTF-16LE"));
+        byte[] withBom = "text".getBytes(StandardCharsets.UTF_16);
+        assertFalse(binary(withBom, null));
+        assertTrue(binary(utf16, null));
+    }
+}
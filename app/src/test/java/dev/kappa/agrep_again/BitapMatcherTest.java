@@ -0,0 +1,103 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BitapMatcherTest {
+
+    /** Sellers' dynamic programming: fewest edits of {@code term} into a substring of {@code text}. */
+    private static int reference(String term, String text) {
+        int m = term.length();
+        int[] column = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            column[j] = j;
+        }
+        int best = column[m];
+        for (int i = 0; i < text.length(); i++) {
+            int diagonal = column[0];
+            column[0] = 0;
+            for (int j = 1; j <= m; j++) {
+                int above = column[j];
+                int cost = term.charAt(j - 1) == text.charAt(i) ? 0 : 1;
+                column[j] = Math.min(Math.min(above + 1, column[j - 1] + 1), diagonal + cost);
+                diagonal = above;
+            }
+            best = Math.min(best, column[m]);
+        }
+        return best;
+    }
+
+    private static int expected(String query, String text, int maxErrors) {
+        int best = -1;
+        for (String term : query.split(" ")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            int errors = reference(term, text);
+            if (errors <= Math.min(maxErrors, term.length() - 1) && (best < 0 || errors < best)) {
+                best = errors;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void exactAndApproximate() {
+        BitapMatcher matcher = BitapMatcher.compile("search", 2, false);
+        assertEquals(0, matcher.minErrors("a search engine"));
+        assertEquals(1, matcher.minErrors("a serch engine"));
+        assertEquals(1, matcher.minErrors("a seaarch engine"));
+        assertEquals(1, matcher.minErrors("a sxarch engine"));
+        assertEquals(2, matcher.minErrors("sarhc"));
+        assertEquals(-1, matcher.minErrors("nothing here"));
+    }
+
+    @Test
+    public void ignoreCase() {
+        assertEquals(0, BitapMatcher.compile("Grep", 1, true).minErrors("AGREP"));
+        assertEquals(1, BitapMatcher.compile("Grep", 1, false).minErrors("GrEp"));
+    }
+
+    @Test
+    public void bestTermWins() {
+        BitapMatcher matcher = BitapMatcher.compile("alpha beta", 2, false);
+        assertEquals(1, matcher.minErrors("alpa bta"));
+        assertEquals(0, matcher.minErrors("alpa beta"));
+    }
+
+    @Test
+    public void randomTextMatchesDynamicProgramming() {
+        Random random = new Random(3);
+        String alphabet = "abcdé日";
+        long[] state = BitapMatcher.compile("x", 3, false).newState();
+        for (int round = 0; round < 3000; round++) {
+            String term = randomString(random, alphabet, 1 + random.nextInt(8));
+            String text = randomString(random, alphabet, random.nextInt(30));
+            int maxErrors = random.nextInt(4);
+            BitapMatcher matcher = BitapMatcher.compile(term, maxErrors, false);
+            assertEquals(term + " in " + text + " k=" + maxErrors,
+                    expected(term, text, maxErrors), matcher.minErrors(text, state));
+        }
+    }
+
+    @Test
+    public void longTerms() {
+        String term = "abcdefghijklmnopqrstuvwxyz0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ__";
+        assertEquals(64, term.length());
+        assertEquals(1, BitapMatcher.compile(term, 1, false).minErrors("x" + term.replace('k', 'K') + "x"));
+        assertNull(BitapMatcher.compile(term + "!", 1, false));
+        assertNull(BitapMatcher.compile("  ", 1, false));
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
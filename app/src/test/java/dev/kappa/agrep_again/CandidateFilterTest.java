@@ -0,0 +1,71 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CandidateFilterTest {
+
+    private static DocumentEntry entry(String name, String mimeType, long size) {
+        return new DocumentEntry(null, name, name, mimeType, size, 1);
+    }
+
+    @Test
+    public void textTypes() {
+        assertTrue(CandidateFilter.mayBeText("text/plain"));
+        assertTrue(CandidateFilter.mayBeText("text/x-java; charset=utf-8"));
+        assertTrue(CandidateFilter.mayBeText("application/json"));
+        assertTrue(CandidateFilter.mayBeText("image/svg+xml"));
+        assertTrue(CandidateFilter.mayBeText("application/vnd.api+json"));
+        // Unknown types are left to binary sniffing
+        assertTrue(CandidateFilter.mayBeText(null));
+        assertTrue(CandidateFilter.mayBeText("application/octet-stream"));
+
+        // Text that providers label with other types
+        assertTrue(CandidateFilter.mayBeText("message/rfc822"));
+        assertTrue(CandidateFilter.mayBeText("application/mbox"));
+        assertTrue(CandidateFilter.mayBeText("application/x-sh"));
+        assertTrue(CandidateFilter.mayBeText("application/x-shellscript"));
+        assertTrue(CandidateFilter.mayBeText("application/x-bsh"));
+        assertTrue(CandidateFilter.mayBeText("video/mp2t"));
+
+        assertFalse(CandidateFilter.mayBeText("image/png"));
+        assertFalse(CandidateFilter.mayBeText("audio/mpeg"));
+        assertFalse(CandidateFilter.mayBeText("video/mp4"));
+        assertFalse(CandidateFilter.mayBeText("font/woff2"));
+        assertFalse(CandidateFilter.mayBeText("application/x-font-ttf"));
+        assertFalse(CandidateFilter.mayBeText("application/zip"));
+        assertFalse(CandidateFilter.mayBeText("application/gzip"));
+        assertFalse(CandidateFilter.mayBeText("application/pdf"));
+    }
+
+    @Test
+    public void textFilesOnly() {
+        Prefs prefs = new Prefs();
+        prefs.mTextFilesOnly = true;
+        assertTrue(CandidateFilter.accepts(entry("a.txt", "text/plain", 10), prefs));
+        assertFalse(CandidateFilter.accepts(entry("a.jpg", "image/jpeg", 10), prefs));
+        // Left to binary sniffing, whatever the extension
+        assertTrue(CandidateFilter.accepts(entry("notes.xyz", "application/octet-stream", 10), prefs));
+        assertTrue(CandidateFilter.accepts(entry("inbox.eml", "message/rfc822", 10), prefs));
+        // TypeScript is reported as an MPEG transport stream
+        assertTrue(CandidateFilter.accepts(entry("a.ts", "video/mp2t", 10), prefs));
+
+        prefs.mTextFilesOnly = false;
+        assertTrue(CandidateFilter.accepts(entry("a.jpg", "image/jpeg", 10), prefs));
+    }
+
+    @Test
+    public void sizeLimit() {
+        Prefs prefs = new Prefs();
+        prefs.mMaxFileSizeMb = 1;
+        assertTrue(CandidateFilter.accepts(entry("a.txt", "text/plain", 1024 * 1024), prefs));
+        assertFalse(CandidateFilter.accepts(entry("a.txt", "text/plain", 1024 * 1024 + 1), prefs));
+        // Unknown size
+        assertTrue(CandidateFilter.accepts(entry("a.txt", "text/plain", -1), prefs));
+
+        prefs.mMaxFileSizeMb = 0;
+        assertTrue(CandidateFilter.accepts(entry("a.txt", "text/plain", Long.MAX_VALUE), prefs));
+    }
+}
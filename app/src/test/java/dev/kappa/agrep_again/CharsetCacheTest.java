@@ -0,0 +1,106 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class CharsetCacheTest {
+
+    private static boolean plain(int... bytes) {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return CharsetCache.isPlainUtf8(data, data.length);
+    }
+
+    @Test
+    public void validatesUtf8() {
+        byte[] text = "ascii, é, 日本語, 😀".getBytes(StandardCharsets.UTF_8);
+        assertTrue(CharsetCache.isPlainUtf8(text, text.length));
+        // Cut inside the emoji
+        assertTrue(CharsetCache.isPlainUtf8(text, text.length - 2));
+
+        assertFalse(plain(0xc0, 0x80));
+        assertFalse(plain(0xe0, 0x80, 0x80));
+        assertFalse(plain(0xed, 0xa0, 0x80));
+        assertFalse(plain(0xf4, 0x90, 0x80, 0x80));
+        assertFalse(plain(0xe6, 0x97, 0x41));
+        assertFalse(plain(0x80));
+        assertFalse(plain(0xff, 0xfe, 0x41, 0x00));
+    }
+
+    @Test
+    public void sevenBitEscapesNeedTheDetector() {
+        byte[] jis = "日本語のテキスト".getBytes(Charset.forName("ISO-2022-JP"));
+        assertFalse(CharsetCache.isPlainUtf8(jis, jis.length));
+        assertFalse(plain('~', '{', 'a'));
+    }
+
+    @Test
+    public void asciiIsUtf8() {
+        byte[] text = "plain text\n".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("UTF-8", CharsetCache.detect(text, text.length));
+        assertEquals("UTF-8", CharsetCache.detect(text, 0));
+    }
+
+    @Test
+    public void fallsBackToDetector() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            sb.append("日本語のテキストです。漢字とかなを含みます。\n");
+        }
+        byte[] sjis = sb.toString().getBytes(Charset.forName("Shift_JIS"));
+        assertFalse(CharsetCache.isPlainUtf8(sjis, sjis.length));
+        assertEquals("SHIFT_JIS", CharsetCache.detect(sjis, sjis.length));
+    }
+
+    @Test
+    public void persistsUntilDocumentChanges() throws IOException {
+        File file = File.createTempFile("charsets", "");
+        file.delete();
+        try {
+            byte[] utf8 = "é".getBytes(StandardCharsets.UTF_8);
+            byte[] garbage = {(byte) 0xff, (byte) 0xfe, 0x41};
+
+            CharsetCache cache = CharsetCache.load(file);
+            assertEquals("UTF-8", cache.detect("content://a", 2, 100, utf8, utf8.length));
+            cache.save();
+            assertTrue(file.isFile());
+
+            CharsetCache reloaded = CharsetCache.load(file);
+            // Cached: the sample is not looked at again
+            assertEquals("UTF-8", reloaded.detect("content://a", 2, 100, garbage, garbage.length));
+            // Modified since: detected again
+            assertNotEquals("UTF-8", reloaded.detect("content://a", 3, 200, garbage, garbage.length));
+            // No timestamp: never cached
+            reloaded.detect("content://b", 2, 0, utf8, utf8.length);
+            reloaded.save();
+            assertNotEquals("UTF-8", CharsetCache.load(file).detect("content://b", 2, 0, garbage, garbage.length));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void corruptFileStartsEmpty() throws IOException {
+        File file = File.createTempFile("charsets", "");
+        try {
+            Files.write(file.toPath(), new byte[]{0x41, 0x47});
+            CharsetCache cache = CharsetCache.load(file);
+            byte[] ascii = {'a'};
+            assertEquals("UTF-8", cache.detect("content://a", 1, 1, ascii, 1));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DocumentDecoderTest {
+
+    /** Hands out at most a few bytes per read, so sequences span refills. */
+    private static InputStream trickle(byte[] data, int from, int chunk) {
+        return new FilterInputStream(new ByteArrayInputStream(data, from, data.length - from)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static String readAll(Reader reader, int chunk) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[chunk];
+        int n;
+        while ((n = reader.read(buf, 0, buf.length)) >= 0) {
+            sb.append(buf, 0, n);
+        }
+        return sb.toString();
+    }
+
+    private static void assertDecodes(DocumentDecoder decoder, byte[] data, String charset, Random random)
+            throws IOException {
+        String expected = readAll(new InputStreamReader(new ByteArrayInputStream(data), charset), 64);
+
+        decoder.reset(charset, data, data.length, null);
+        assertEquals(expected, readAll(decoder, 1 + random.nextInt(40)));
+
+        int head = random.nextInt(data.length + 1);
+        decoder.reset(charset, Arrays.copyOf(data, head), head, trickle(data, head, 1 + random.nextInt(20)));
+        assertEquals(expected, readAll(decoder, 1 + random.nextInt(40)));
+
+        // Like a mapped document, without an array
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        decoder.reset(charset, direct);
+        assertEquals(expected, readAll(decoder, 1 + random.nextInt(40)));
+    }
+
+    private static byte[] randomText(Random random, Charset charset, boolean garbage) {
+        String[] pieces = {"a", "Z", "\n", "\r\n", "é", "日本", "ｶ", "😀", "ß", "€"};
+        StringBuilder sb = new StringBuilder();
+        int count = random.nextInt(60);
+        for (int i = 0; i < count; i++) {
+            sb.append(pieces[random.nextInt(pieces.length)]);
+        }
+        byte[] data = sb.toString().getBytes(charset);
+        if (garbage && data.length > 0) {
+            for (int i = random.nextInt(4); i >= 0; i--) {
+                data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void matchesInputStreamReader() throws IOException {
+        Random random = new Random(13);
+        String[] charsets = {"UTF-8", "ISO-8859-1", "windows-1252", "US-ASCII", "Shift_JIS", "EUC-JP", "UTF-16LE"};
+        DocumentDecoder decoder = new DocumentDecoder(16);
+        for (int round = 0; round < 3000; round++) {
+            String charset = charsets[round % charsets.length];
+            byte[] data = randomText(random, Charset.forName(charset), round % 3 == 0);
+            assertDecodes(decoder, data, charset, random);
+        }
+    }
+
+    @Test
+    public void utf8EdgeCases() throws IOException {
+        Random random = new Random(14);
+        DocumentDecoder decoder = new DocumentDecoder(8);
+        int[][] cases = {
+            {0xc0, 0x80}, {0xe0, 0x80, 0x80}, {0xed, 0xa0, 0x80}, {0xf0, 0x80, 0x80, 0x80},
+            {0xf4, 0x90, 0x80, 0x80}, {0xf5, 0x80}, {0xe2, 0x82}, {0x61, 0xf0, 0x9f, 0x98},
+            {0xe2, 0x82, 0xac, 0x80, 0x61}, {0xef, 0xbb, 0xbf, 0x61},
+        };
+        for (int[] c : cases) {
+            byte[] data = new byte[c.length];
+            for (int i = 0; i < c.length; i++) {
+                data[i] = (byte) c[i];
+            }
+            for (int i = 0; i < 20; i++) {
+                assertDecodes(decoder, data, "UTF-8", random);
+            }
+        }
+    }
+
+    @Test
+    public void defaultCharset() throws IOException {
+        DocumentDecoder decoder = new DocumentDecoder(16);
+        byte[] data = "plain".getBytes(Charset.defaultCharset());
+        decoder.reset(null, data, data.length, null);
+        assertEquals("plain", readAll(decoder, 4));
+    }
+
+    @Test
+    public void decodesAfterTrimmingALongHead() throws IOException {
+        DocumentDecoder decoder = new DocumentDecoder(16);
+        byte[] head = new byte[1000];
+        Arrays.fill(head, (byte) 'a');
+        decoder.reset("UTF-8", head, head.length, new ByteArrayInputStream("b".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(1001, readAll(decoder, 64).length());
+        decoder.trim();
+        byte[] next = "next".getBytes(StandardCharsets.UTF_8);
+        decoder.reset("UTF-8", next, 2, new ByteArrayInputStream(next, 2, 2));
+        assertEquals("next", readAll(decoder, 4));
+    }
+
+    @Test(expected = UnsupportedEncodingException.class)
+    public void unsupportedCharset() throws IOException {
+        byte[] data = "x".getBytes(StandardCharsets.US_ASCII);
+        new DocumentDecoder(16).reset("x-no-such-charset", data, data.length, null);
+    }
+}
@@ -0,0 +1,253 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class DocumentScannerTest {
+
+    private static final Charset SHIFT_JIS = Charset.forName("Shift_JIS");
+    private static final Charset EUC_JP = Charset.forName("EUC-JP");
+    private static final String[] WORDS = {
+        "foo", "FOO", "bar", "baz", "xfoo", "fo", "o", " ", " ", "\t", "café", "日本語", "テスト", "ab12"
+    };
+    private static final String[] BREAKS = {"\n", "\r\n", "\r"};
+
+    /** Short buffers and segments, so lines and CR LF pairs span refills and long lines are split. */
+    private static DocumentScanner scanner() {
+        return new DocumentScanner(32, 32, 256, 16);
+    }
+
+    private static SearchRequest request(String query, boolean regex, boolean ignoreCase) {
+        Prefs prefs = new Prefs();
+        prefs.mRegularExpression = regex;
+        prefs.mIgnoreCase = ignoreCase;
+        // Like Search, a plain query matches any of its words
+        String patternText = query;
+        if (!regex) {
+            List<String> words = new ArrayList<>();
+            for (String word : query.split(" ")) {
+                words.add(Pattern.quote(word));
+            }
+            patternText = String.join("|", words);
+        }
+        Pattern pattern = ignoreCase
+            ? Pattern.compile(patternText, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.MULTILINE)
+            : Pattern.compile(patternText);
+        return new SearchRequest(query, pattern, prefs);
+    }
+
+    /** Hands out at most a few bytes per read. */
+    private static InputStream trickle(byte[] bytes, int from, int chunk) {
+        return new FilterInputStream(new ByteArrayInputStream(bytes, from, bytes.length - from)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static List<String> readLines(String text) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Checks that each reported hit is a part of its line with a match at the hit, and
+     * collects the line numbers.
+     */
+    private static final class Hits implements DocumentScanner.Sink {
+        final List<String> lines;
+        final Pattern pattern;
+        final List<Integer> numbers = new ArrayList<>();
+
+        Hits(List<String> lines, Pattern pattern) {
+            this.lines = lines;
+            this.pattern = pattern;
+        }
+
+        @Override
+        public void add(int line, CharSequence text, int hitStart, int textOffset, int errors) {
+            String whole = lines.get(line - 1);
+            String part = text.toString();
+            assertEquals(whole.substring(textOffset, textOffset + part.length()), part);
+            Matcher m = pattern.matcher(whole).useTransparentBounds(true).useAnchoringBounds(false);
+            m.region(textOffset + hitStart, whole.length());
+            assertTrue("no match at " + hitStart + " in line " + line, m.lookingAt());
+            numbers.add(line);
+        }
+
+        @Override
+        public boolean isStopped() {
+            return false;
+        }
+    }
+
+    /**
+     * Start the scanner on {@code bytes} held in memory, streamed after a short head, or
+     * in a direct buffer like a mapped document.
+     */
+    private static void open(DocumentScanner scanner, Charset charset, byte[] bytes, String how) {
+        switch (how) {
+            case "streamed":
+                int head = Math.min(bytes.length, 20);
+                scanner.reset(charset.name(), bytes, head, trickle(bytes, head, 7));
+                break;
+            case "mapped":
+                ByteBuffer mapped = ByteBuffer.allocateDirect(bytes.length + 3);
+                mapped.put(new byte[] {'x', '\n', 'y'}).put(bytes).flip().position(3);
+                scanner.reset(charset.name(), mapped);
+                break;
+            default:
+                scanner.reset(charset.name(), bytes, bytes.length, null);
+        }
+    }
+
+    /**
+     * Scan {@code text} every way that applies to the query, with the document in memory,
+     * streamed and mapped, and compare the matching lines with {@link Matcher#find()} on each line
+     * {@link BufferedReader#readLine()} returns.
+     */
+    private static void assertScans(String text, Charset charset, SearchRequest request) throws IOException {
+        List<String> lines = readLines(text);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            if (request.pattern.matcher(lines.get(i)).find()) {
+                expected.add(i + 1);
+            }
+        }
+        byte[] bytes = text.getBytes(charset);
+        EncodedLiteral encoded = request.requiredLiterals != null
+            ? EncodedLiteral.create(request.requiredLiterals, request.prefs.mIgnoreCase, charset) : null;
+        DocumentScanner scanner = scanner();
+        for (String how : new String[] {"in memory", "streamed", "mapped"}) {
+            String message = charset + " " + request.query + " " + how + ": " + text;
+
+            Hits hits = new Hits(lines, request.pattern);
+            open(scanner, charset, bytes, how);
+            scanner.scanLines(request, false, hits);
+            assertEquals("lines " + message, expected, hits.numbers);
+
+            if (request.literal != null || request.windowPattern != null) {
+                hits = new Hits(lines, request.pattern);
+                open(scanner, charset, bytes, how);
+                scanner.scanWindows(request, false, hits);
+                assertEquals("windows " + message, expected, hits.numbers);
+            }
+            if (encoded != null) {
+                hits = new Hits(lines, request.pattern);
+                open(scanner, charset, bytes, how);
+                scanner.scanEncoded(request, encoded, hits);
+                assertEquals("encoded " + message, expected, hits.numbers);
+            }
+            scanner.trim();
+        }
+    }
+
+    private static String randomText(Random random, Charset charset) {
+        StringBuilder sb = new StringBuilder();
+        int lines = random.nextInt(12);
+        for (int line = 0; line < lines; line++) {
+            int words = random.nextInt(10) == 0 ? 150 + random.nextInt(200) : random.nextInt(8);
+            for (int w = 0; w < words; w++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                if (charset.newEncoder().canEncode(word)) {
+                    sb.append(word);
+                }
+            }
+            if (line < lines - 1 || random.nextBoolean()) {
+                sb.append(BREAKS[random.nextInt(BREAKS.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void matchesReadLineOnRandomText() throws IOException {
+        Random random = new Random(9);
+        List<SearchRequest> requests = Arrays.asList(
+                request("foo", false, false),
+                request("foo", false, true),
+                request("foo bar", false, true),
+                request("caf", false, true),
+                request("日本語", false, false),
+                request("fo+\\b", true, false),
+                request("^foo", true, true),
+                request("foo$", true, false),
+                request("ba[rz]\\s*$", true, false),
+                request("\\sfoo", true, false),
+                request("(?<=x)foo", true, false),
+                request("\\Afoo", true, true),
+                request("テスト.*日本", true, false));
+        for (Charset charset : Arrays.asList(StandardCharsets.UTF_8, SHIFT_JIS, EUC_JP, StandardCharsets.ISO_8859_1)) {
+            for (int round = 0; round < 150; round++) {
+                String text = randomText(random, charset);
+                for (SearchRequest request : requests) {
+                    assertScans(text, charset, request);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void encodedHitsAreDecoded() throws IOException {
+        SearchRequest request = request("日本語", false, false);
+        for (Charset charset : Arrays.asList(SHIFT_JIS, EUC_JP)) {
+            assertNotNull(EncodedLiteral.create(request.requiredLiterals, false, charset));
+            assertScans("テスト\r\n日本語です\rそれは日本語\n\n日本", charset, request);
+        }
+    }
+
+    @Test
+    public void crLfAcrossWindows() throws IOException {
+        // The first window ends between CR and LF
+        String first = "0123456789012345678901234567890\r\n";
+        for (String query : Arrays.asList("^foo", "foo$", "^$", "(?<=x)foo", "\\Afoo")) {
+            SearchRequest request = request(query, true, false);
+            assertScans(first + "foo\r\n\r\nxfoo\r\nfoo", StandardCharsets.UTF_8, request);
+            assertScans(first + first + "\rfoo\n", StandardCharsets.ISO_8859_1, request);
+        }
+        assertScans(first + "foo\r\nfoo", StandardCharsets.UTF_8, request("foo", false, false));
+        // Patterns that look past the line are matched line by line
+        assertNull(request("(?<=x)foo", true, false).windowPattern);
+        assertNull(request("\\Afoo", true, false).windowPattern);
+    }
+
+    @Test
+    public void longLinesAreMatchedInSegments() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String longLine = sb.toString();
+        String text = "foo\r\n" + longLine + "foo" + longLine + "\r\nbar\nfoo " + longLine + "\n";
+        assertScans(text, StandardCharsets.UTF_8, request("foo", false, false));
+        assertScans(text, StandardCharsets.UTF_8, request("fo+", true, false));
+        assertScans(text, StandardCharsets.UTF_8, request("^foo", true, false));
+        assertScans(text, StandardCharsets.UTF_8, request("zfoo", false, false));
+    }
+}
@@ -0,0 +1,102 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class EncodedLiteralTest {
+
+    private static final Charset SHIFT_JIS = Charset.forName("Shift_JIS");
+
+    private static int indexOf(EncodedLiteral literal, byte[] bytes, int from) {
+        return literal.cursor().indexOf(bytes, from, bytes.length);
+    }
+
+    @Test
+    public void findsEncodedNeedle() {
+        byte[] text = "first line\nsecond 日本語 line\n".getBytes(StandardCharsets.UTF_8);
+        EncodedLiteral literal = EncodedLiteral.create(Collections.singletonList("日本語"), false, StandardCharsets.UTF_8);
+        assertNotNull(literal);
+        assertEquals("first line\nsecond ".getBytes(StandardCharsets.UTF_8).length, indexOf(literal, text, 0));
+        assertEquals(-1, indexOf(literal, text, 20));
+    }
+
+    @Test
+    public void shiftJis() {
+        byte[] text = "検索する文字列".getBytes(SHIFT_JIS);
+        EncodedLiteral literal = EncodedLiteral.create(Collections.singletonList("文字"), false, SHIFT_JIS);
+        assertNotNull(literal);
+        assertEquals("検索する".getBytes(SHIFT_JIS).length, indexOf(literal, text, 0));
+    }
+
+    @Test
+    public void asciiIgnoreCase() {
+        byte[] text = "say HeLLo".getBytes(StandardCharsets.UTF_8);
+        EncodedLiteral literal = EncodedLiteral.create(Collections.singletonList("hello"), true, StandardCharsets.UTF_8);
+        assertEquals(4, indexOf(literal, text, 0));
+        assertEquals(-1, indexOf(EncodedLiteral.create(Collections.singletonList("hello"), false, StandardCharsets.UTF_8), text, 0));
+    }
+
+    @Test
+    public void foldVariantsAreCandidates() {
+        // U+212A KELVIN SIGN matches 'k' case-insensitively, so its line has to be checked
+        byte[] text = "Key".getBytes(StandardCharsets.UTF_8);
+        EncodedLiteral literal = EncodedLiteral.create(Collections.singletonList("key"), true, StandardCharsets.UTF_8);
+        assertEquals(0, indexOf(literal, text, 0));
+        assertEquals(-1, indexOf(EncodedLiteral.create(Collections.singletonList("key"), false, StandardCharsets.UTF_8), text, 0));
+    }
+
+    @Test
+    public void cursorReportsEachHitOnce() {
+        byte[] text = "ab ab ab".getBytes(StandardCharsets.US_ASCII);
+        EncodedLiteral.Cursor cursor = EncodedLiteral.create(Collections.singletonList("ab"), false, StandardCharsets.US_ASCII).cursor();
+        assertEquals(0, cursor.indexOf(text, 0, text.length));
+        assertEquals(3, cursor.indexOf(text, 1, text.length));
+        assertEquals(6, cursor.indexOf(text, 4, text.length));
+        assertEquals(-1, cursor.indexOf(text, 7, text.length));
+    }
+
+    @Test
+    public void searchesBuffersInPlace() {
+        byte[] text = "x ab AB ab".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer direct = ByteBuffer.allocateDirect(text.length);
+        direct.put(text);
+        EncodedLiteral.Cursor cursor = EncodedLiteral.create(Collections.singletonList("ab"), true, StandardCharsets.US_ASCII).cursor();
+        assertEquals(2, cursor.indexOf(direct, 0, text.length));
+        assertEquals(5, cursor.indexOf(direct, 3, text.length));
+        assertEquals(8, cursor.indexOf(direct, 6, text.length));
+        assertEquals(-1, cursor.indexOf(direct, 9, text.length));
+    }
+
+    @Test
+    public void unsupportedCases() {
+        assertFalse(EncodedLiteral.isStatelessAsciiCompatible(StandardCharsets.UTF_16LE));
+        assertFalse(EncodedLiteral.isStatelessAsciiCompatible(Charset.forName("ISO-2022-JP")));
+        assertTrue(EncodedLiteral.isStatelessAsciiCompatible(Charset.forName("EUC-JP")));
+        assertNull(EncodedLiteral.create(Collections.singletonList("abc"), false, StandardCharsets.UTF_16BE));
+        // Cased letters outside ASCII have case variants with other encodings
+        assertNull(EncodedLiteral.create(Collections.singletonList("éclair"), true, StandardCharsets.UTF_8));
+        assertNotNull(EncodedLiteral.create(Collections.singletonList("éclair"), false, StandardCharsets.UTF_8));
+        // Not representable in the document's charset
+        assertNull(EncodedLiteral.create(Collections.singletonList("日本"), false, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void anyOfSeveralLiterals() {
+        byte[] text = "one two three".getBytes(StandardCharsets.UTF_8);
+        EncodedLiteral literal = EncodedLiteral.create(Arrays.asList("three", "two"), false, StandardCharsets.UTF_8);
+        assertEquals(4, indexOf(literal, text, 0));
+        assertEquals(8, indexOf(literal, text, 5));
+        assertNull(EncodedLiteral.create(Arrays.asList("two", "日本"), false, StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,73 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LineCounterTest {
+
+    /** Breaks as readLine sees them: lines read, minus an unterminated last line. */
+    private static int readerBreaks(String text) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        int lines = 0;
+        while (reader.readLine() != null) {
+            lines++;
+        }
+        boolean terminated = text.isEmpty() || text.endsWith("\n") || text.endsWith("\r");
+        return terminated ? lines : lines - 1;
+    }
+
+    @Test
+    public void mixedBreaks() {
+        byte[] text = "a\nb\r\nc\rd\n\n\r\r\ne".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(7, new LineCounter().count(text, 0, text.length));
+    }
+
+    @Test
+    public void pairSplitAcrossWordsAndCalls() {
+        byte[] text = "0123456\r\n9abcdef\r".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(1, new LineCounter().count(text, 0, 9));
+        LineCounter counter = new LineCounter();
+        assertEquals(1, counter.count(text, 0, 8));
+        assertEquals(1, counter.count(text, 8, 9));
+        assertEquals(2, counter.count(text, 9, text.length));
+    }
+
+    @Test
+    public void randomTextMatchesReader() throws IOException {
+        Random random = new Random(11);
+        String alphabet = "ab\r\n";
+        for (int round = 0; round < 2000; round++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(60);
+            for (int i = 0; i < length; i++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String text = sb.toString();
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            int expected = readerBreaks(text);
+
+            // Split at random points to cover state carried between calls
+            LineCounter byteCounter = new LineCounter();
+            LineCounter charCounter = new LineCounter();
+            int split = bytes.length == 0 ? 0 : random.nextInt(bytes.length + 1);
+            byteCounter.count(bytes, 0, split);
+            charCounter.count(text.toCharArray(), 0, split);
+            assertEquals(text, expected, byteCounter.count(bytes, split, bytes.length));
+            assertEquals(text, expected, charCounter.count(text.toCharArray(), split, bytes.length));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes);
+            LineCounter bufferCounter = new LineCounter();
+            bufferCounter.count(direct, 0, split);
+            assertEquals(text, expected, bufferCounter.count(direct, split, bytes.length));
+        }
+    }
+}
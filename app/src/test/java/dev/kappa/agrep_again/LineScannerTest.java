@@ -0,0 +1,143 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LineScannerTest {
+
+    /** Hands out at most a few chars per read, so lines and CR LF pairs span refills. */
+    private static Reader trickle(String text, int chunk) {
+        return new FilterReader(new StringReader(text)) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static void assertSameLines(String text, LineScanner scanner, int chunk) throws IOException {
+        BufferedReader expected = new BufferedReader(new StringReader(text));
+        scanner.reset(trickle(text, chunk));
+        String line;
+        int number = 0;
+        while ((line = expected.readLine()) != null) {
+            assertTrue(scanner.next());
+            assertEquals(++number, scanner.lineNumber());
+            assertEquals(line, scanner.line().toString());
+            assertEquals(line, scanner.lineString());
+        }
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void mixedBreaks() throws IOException {
+        LineScanner scanner = new LineScanner(4);
+        assertSameLines("a\nb\r\nc\rd\n\n\r\r\ne", scanner, 1);
+        assertSameLines("\r", scanner, 1);
+        assertSameLines("", scanner, 1);
+        assertSameLines("no break", scanner, 3);
+    }
+
+    @Test
+    public void matchesReadLineOnRandomText() throws IOException {
+        Random random = new Random(12);
+        char[] alphabet = {'a', 'b', '\r', '\n'};
+        LineScanner scanner = new LineScanner(8);
+        for (int round = 0; round < 2000; round++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(round % 10 == 0 ? 200 : 30);
+            for (int i = 0; i < length; i++) {
+                sb.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            assertSameLines(sb.toString(), scanner, 1 + random.nextInt(10));
+        }
+    }
+
+    @Test
+    public void longLineGrowsBuffer() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String text = "x\r\n" + sb + "\r\ny";
+        assertSameLines(text, new LineScanner(16), 7);
+    }
+
+    @Test
+    public void lineViewIsASubSequence() throws IOException {
+        LineScanner scanner = new LineScanner(16);
+        scanner.reset(new StringReader("hello world\n"));
+        assertTrue(scanner.next());
+        CharSequence line = scanner.line();
+        assertEquals(11, line.length());
+        assertEquals('w', line.charAt(6));
+        assertEquals("world", line.subSequence(6, 11).toString());
+    }
+
+    @Test
+    public void longLineComesInOverlappingSegments() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String line = sb.toString();
+        LineScanner scanner = new LineScanner(4, 30, 5);
+        scanner.reset(trickle("first\n" + line + "\nlast", 3));
+
+        assertTrue(scanner.next());
+        assertEquals("first", scanner.lineString());
+        assertEquals(0, scanner.contextStart());
+
+        int expectedOffset = 0;
+        int segments = 0;
+        while (true) {
+            assertTrue(scanner.next());
+            if (scanner.lineNumber() == 3) {
+                break;
+            }
+            assertEquals(2, scanner.lineNumber());
+            assertEquals(expectedOffset, scanner.lineOffset());
+            String segment = scanner.lineString();
+            assertTrue(segment.length() <= 30);
+            assertEquals(line.substring(expectedOffset, expectedOffset + segment.length()), segment);
+
+            // The context reaches one character past each cut
+            int contextFrom = expectedOffset - scanner.contextStart();
+            int contextTo = Math.min(line.length(), expectedOffset + segment.length() + 1);
+            assertEquals(line.substring(contextFrom, contextTo), scanner.context().toString());
+            assertEquals(segments == 0 ? 0 : 1, scanner.contextStart());
+
+            expectedOffset += segment.length() - 5;
+            segments++;
+        }
+        assertEquals(4, segments);
+        assertEquals("last", scanner.lineString());
+        assertEquals(0, scanner.lineOffset());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void preloadedTextComesFirst() throws IOException {
+        LineScanner scanner = new LineScanner(4);
+        scanner.reset(new StringReader("def\nghi"), 10);
+        char[] head = "xabc".toCharArray();
+        scanner.preload(head, 1, 4);
+        assertTrue(scanner.next());
+        assertEquals("abcdef", scanner.lineString());
+        assertEquals(11, scanner.lineNumber());
+        assertTrue(scanner.next());
+        assertEquals("ghi", scanner.lineString());
+        assertEquals(12, scanner.lineNumber());
+        assertFalse(scanner.next());
+    }
+}
@@ -0,0 +1,62 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LineSnippetTest {
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void shortLineIsKeptWhole() {
+        String line = repeat('a', LineSnippet.MAX_LENGTH);
+        assertEquals(line, LineSnippet.of(line, 100));
+    }
+
+    @Test
+    public void longLineIsCutAroundTheHit() {
+        String line = repeat('a', 10000) + "needle" + repeat('b', 10000);
+        String snippet = LineSnippet.of(line, 10000);
+        assertEquals(LineSnippet.MAX_LENGTH + 2, snippet.length());
+        assertEquals('…', snippet.charAt(0));
+        assertEquals('…', snippet.charAt(snippet.length() - 1));
+        assertTrue(snippet.contains("needle"));
+        assertTrue(snippet.indexOf("needle") > 100);
+    }
+
+    @Test
+    public void hitNearAnEndKeepsThatEnd() {
+        String line = "needle" + repeat('b', 10000);
+        String head = LineSnippet.of(line, 0);
+        assertTrue(head.startsWith("needle"));
+        assertEquals(LineSnippet.MAX_LENGTH + 1, head.length());
+
+        line = repeat('a', 10000) + "needle";
+        String tail = LineSnippet.of(line, 10000);
+        assertTrue(tail.endsWith("needle"));
+        assertEquals(LineSnippet.MAX_LENGTH + 1, tail.length());
+    }
+
+    @Test
+    public void surrogatePairsAreNotSplit() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("😀");
+        }
+        String line = sb.toString();
+        for (int hit = 1000; hit < 1004; hit++) {
+            String snippet = LineSnippet.of(line, hit);
+            String body = snippet.substring(1, snippet.length() - 1);
+            assertTrue(Character.isHighSurrogate(body.charAt(0)));
+            assertTrue(Character.isLowSurrogate(body.charAt(body.length() - 1)));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class LiteralMatcherTest {
+
+    private static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.MULTILINE;
+
+    private static void assertSameAsPattern(String literal, String text, boolean ignoreCase) {
+        LiteralMatcher literalMatcher = LiteralMatcher.compile(literal, ignoreCase);
+        Matcher m = Pattern.compile(Pattern.quote(literal), ignoreCase ? FLAGS : 0).matcher(text);
+        int from = 0;
+        while (true) {
+            int expected = m.find(from) ? m.start() : -1;
+            int actual = literalMatcher.indexOf(text, from);
+            assertEquals("'" + literal + "' in '" + text + "' from " + from, expected, actual);
+            if (expected < 0) {
+                return;
+            }
+            assertEquals(m.end(), actual + literalMatcher.length());
+            from = m.end();
+        }
+    }
+
+    @Test
+    public void findsEveryOccurrence() {
+        assertSameAsPattern("abc", "abcabcxabc", false);
+        assertSameAsPattern("aa", "aaaaa", false);
+        assertSameAsPattern("needle", "haystack", false);
+        assertSameAsPattern("x", "", false);
+        assertSameAsPattern("long needle", "short", false);
+        assertSameAsPattern("日本語", "これは日本語の文章、日本語です", false);
+    }
+
+    @Test
+    public void caseSensitive() {
+        assertEquals(-1, LiteralMatcher.compile("Foo", false).indexOf("foo FOO", 0));
+        assertEquals(4, LiteralMatcher.compile("Foo", false).indexOf("foo Foo", 0));
+    }
+
+    @Test
+    public void ignoreCase() {
+        assertSameAsPattern("Foo", "foo FOO fOo", true);
+        assertSameAsPattern("straße", "STRASSE Straße STRAßE", true);
+        assertSameAsPattern("k", "K K k", true);
+        assertSameAsPattern("σ", "Σ ς σ", true);
+        assertSameAsPattern("i", "I İ ı i", true);
+    }
+
+    @Test
+    public void shiftTableCollisions() {
+        // U+0161 and 'a' share a slot in the shift table
+        assertSameAsPattern("šxa", "ašxašxaa", false);
+        assertSameAsPattern("aĀb", "xaĀbaĀb", true);
+    }
+
+    @Test
+    public void randomTextMatchesPattern() {
+        Random random = new Random(42);
+        String alphabet = "abABéÉ š";
+        for (int round = 0; round < 2000; round++) {
+            String literal = randomString(random, alphabet, 1 + random.nextInt(4));
+            String text = randomString(random, alphabet, random.nextInt(40));
+            assertSameAsPattern(literal, text, false);
+            assertSameAsPattern(literal, text, true);
+        }
+    }
+
+    @Test
+    public void unsupportedLiterals() {
+        assertNull(LiteralMatcher.compile("", false));
+        assertNull(LiteralMatcher.compile("𐐀", true));
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class MatchRangesTest {
+
+    @Test
+    public void findsEveryRegexMatch() {
+        Pattern pattern = Pattern.compile("a+b");
+        assertArrayEquals(new int[]{0, 2, 4, 8}, MatchRanges.find("ab, aaab, b", null, pattern.matcher("")));
+        assertNull(MatchRanges.find("nothing", null, pattern.matcher("")));
+    }
+
+    @Test
+    public void skipsEmptyMatches() {
+        Pattern pattern = Pattern.compile("x*");
+        assertArrayEquals(new int[]{1, 3}, MatchRanges.find("axxb", null, pattern.matcher("")));
+        assertNull(MatchRanges.find("ab", null, pattern.matcher("")));
+    }
+
+    @Test
+    public void usesTheLiteralMatcher() {
+        LiteralSearch literal = LiteralMatcher.compile("Foo", true);
+        assertArrayEquals(new int[]{0, 3, 8, 11}, MatchRanges.find("foo and FOO", literal, null));
+    }
+
+    @Test
+    public void capsTheNumberOfRanges() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("a ");
+        }
+        int[] ranges = MatchRanges.find(sb, null, Pattern.compile("a").matcher(""));
+        assertArrayEquals(new int[]{0, 1}, new int[]{ranges[0], ranges[1]});
+        assertArrayEquals(new int[]{MatchRanges.MAX_RANGES * 2}, new int[]{ranges.length});
+    }
+}
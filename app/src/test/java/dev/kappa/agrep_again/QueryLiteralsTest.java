@@ -0,0 +1,122 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QueryLiteralsTest {
+
+    private static List<List<String>> regex(String query) {
+        return QueryLiterals.extract(query, true, 3);
+    }
+
+    @Test
+    public void plainQuery_isSingleLiteral() {
+        assertEquals(Collections.singletonList(Collections.singletonList("hello")),
+                QueryLiterals.extract("hello", false, 3));
+    }
+
+    @Test
+    public void plainQuery_spacesBecomeAlternatives() {
+        assertEquals(Arrays.asList(
+                        Collections.singletonList("foo"),
+                        Collections.singletonList("bar")),
+                QueryLiterals.extract("foo bar", false, 3));
+    }
+
+    @Test
+    public void plainQuery_shortOrEmptyTermDisablesFilter() {
+        assertNull(QueryLiterals.extract("foo ab", false, 3));
+        assertNull(QueryLiterals.extract("foo  bar", false, 3));
+    }
+
+    @Test
+    public void plainQuery_keepsRegexMetaCharacters() {
+        assertEquals(Collections.singletonList(Collections.singletonList("a.b*c")),
+                QueryLiterals.extract("a.b*c", false, 3));
+    }
+
+    @Test
+    public void regex_splitsOnCharacterClasses() {
+        assertEquals(Collections.singletonList(Arrays.asList("foo", "bar")), regex("foo\\d+bar"));
+    }
+
+    @Test
+    public void regex_optionalAtomIsDropped() {
+        assertEquals(Collections.singletonList(Arrays.asList("colo", "rful")), regex("colou?rful"));
+    }
+
+    @Test
+    public void regex_plusKeepsAtom() {
+        assertEquals(Collections.singletonList(Arrays.asList("abc", "def")), regex("abc+def"));
+    }
+
+    @Test
+    public void regex_exactRepeatKeepsAtom() {
+        assertEquals(Collections.singletonList(Arrays.asList("abc", "xyz")), regex("abc{2}xyz"));
+        assertEquals(Collections.singletonList(Arrays.asList("abc", "xyz")), regex("abcd{0,2}xyz"));
+    }
+
+    @Test
+    public void regex_escapedMetaCharIsLiteral() {
+        assertEquals(Collections.singletonList(Collections.singletonList("file.txt")),
+                regex("file\\.txt"));
+    }
+
+    @Test
+    public void regex_groupsAreSkipped() {
+        assertEquals(Collections.singletonList(Arrays.asList("error", "here")),
+                regex("error(code|num)?here"));
+    }
+
+    @Test
+    public void regex_topLevelAlternation() {
+        assertEquals(Arrays.asList(
+                        Collections.singletonList("alpha"),
+                        Collections.singletonList("beta")),
+                regex("alpha|beta"));
+    }
+
+    @Test
+    public void regex_alternativeWithoutLiteralDisablesFilter() {
+        assertNull(regex("alpha|\\d+"));
+        assertNull(regex(".*"));
+    }
+
+    @Test
+    public void regex_inlineFlagsDisableFilter() {
+        assertNull(regex("(?x)foo bar"));
+    }
+
+    @Test
+    public void regex_characterClassWithBracket() {
+        assertEquals(Collections.singletonList(Arrays.asList("abc", "def")), regex("abc[]x]def"));
+    }
+
+    @Test
+    public void regex_escapeArgumentsAreNotLiterals() {
+        assertEquals(Collections.singletonList(Collections.singletonList("bcd")), regex("\\x41bcd"));
+        assertEquals(Collections.singletonList(Collections.singletonList("xyz")), regex("\\u0041xyz"));
+        assertEquals(Collections.singletonList(Collections.singletonList("abc")), regex("\\p{Alpha}abc"));
+        assertEquals(Collections.singletonList(Collections.singletonList("abc")), regex("\\pLabc"));
+        assertEquals(Collections.singletonList(Collections.singletonList("abc")), regex("\\0101abc"));
+        assertEquals(Collections.singletonList(Collections.singletonList("abc")), regex("\\cMabc"));
+        assertEquals(Collections.singletonList(Collections.singletonList("123")), regex("\\x{41}123"));
+    }
+
+    @Test
+    public void longestPerAlternative() {
+        assertEquals(Arrays.asList("error", "warning"),
+                QueryLiterals.longestPerAlternative(regex("error\\d+at|warn.*warning")));
+        assertEquals(Collections.singletonList("same"),
+                QueryLiterals.longestPerAlternative(regex("same|same")));
+        assertEquals(Collections.singletonList("bar"),
+                QueryLiterals.longestPerAlternative(regex("foo\\d+bar")));
+        assertNull(QueryLiterals.longestPerAlternative(null));
+    }
+}
@@ -0,0 +1,116 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ResultCache.Document document(String id, long size, long modified, String... texts) {
+        int[] lines = new int[texts.length];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = i + 1;
+        }
+        return new ResultCache.Document(id, size, modified, lines, texts, new int[texts.length]);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = new File(folder.getRoot(), "cache");
+        ResultCache cache = ResultCache.load(file);
+        cache.record(new ResultCache.Document("doc:a", 100, 1000,
+                new int[] {1, 2}, new String[] {"first hit", "あいう"}, new int[] {0, 2}));
+        cache.record(document("doc:b", 200, 2000));
+        assertEquals(2, cache.recordedMatches());
+        cache.save(file);
+
+        ResultCache reloaded = ResultCache.load(file);
+        ResultCache.Document a = reloaded.lookup("doc:a", 100, 1000);
+        assertNotNull(a);
+        assertArrayEquals(new int[] {1, 2}, a.lines);
+        assertArrayEquals(new String[] {"first hit", "あいう"}, a.texts);
+        assertArrayEquals(new int[] {0, 2}, a.errors);
+        ResultCache.Document b = reloaded.lookup("doc:b", 200, 2000);
+        assertNotNull(b);
+        assertEquals(0, b.matchCount());
+    }
+
+    @Test
+    public void dropsEverythingPastTheLimit() {
+        ResultCache cache = ResultCache.load(new File(folder.getRoot(), "none"), 3);
+        cache.record(document("doc:a", 1, 1, "a", "b"));
+        assertTrue(cache.canRecord(1));
+        assertFalse(cache.canRecord(2));
+        assertFalse(cache.isOverflowed());
+
+        cache.record(document("doc:b", 1, 1, "c", "d"));
+        assertTrue(cache.isOverflowed());
+        assertEquals(0, cache.recordedMatches());
+        cache.record(document("doc:c", 1, 1));
+        assertEquals(0, cache.recordedMatches());
+        assertFalse(cache.canRecord(0));
+    }
+
+    @Test
+    public void modifiedDocumentIsStale() throws IOException {
+        File file = new File(folder.getRoot(), "cache");
+        ResultCache cache = ResultCache.load(file);
+        cache.record(document("doc:a", 100, 1000, "hit"));
+        cache.save(file);
+
+        ResultCache reloaded = ResultCache.load(file);
+        assertNull(reloaded.lookup("doc:a", 101, 1000));
+        assertNull(reloaded.lookup("doc:a", 100, 1001));
+        assertNull(reloaded.lookup("doc:c", 100, 1000));
+    }
+
+    @Test
+    public void unknownMetadataIsNotCached() throws IOException {
+        File file = new File(folder.getRoot(), "cache");
+        ResultCache cache = ResultCache.load(file);
+        cache.record(document("doc:a", -1, 1000, "hit"));
+        cache.record(document("doc:b", 100, 0, "hit"));
+        cache.save(file);
+
+        ResultCache reloaded = ResultCache.load(file);
+        assertNull(reloaded.lookup("doc:a", -1, 1000));
+        assertNull(reloaded.lookup("doc:b", 100, 0));
+    }
+
+    @Test
+    public void missingOrCorruptFileIsEmpty() throws IOException {
+        assertNull(ResultCache.load(new File(folder.getRoot(), "none")).lookup("doc:a", 1, 1));
+        File corrupt = folder.newFile("corrupt");
+        Files.write(corrupt.toPath(), new byte[] {1, 2, 3});
+        assertNull(ResultCache.load(corrupt).lookup("doc:a", 1, 1));
+    }
+
+    @Test
+    public void pruneKeepsNewest() throws IOException {
+        File dir = folder.newFolder("results");
+        for (int i = 0; i < 5; i++) {
+            File f = new File(dir, "r" + i);
+            assertTrue(f.createNewFile());
+            assertTrue(f.setLastModified(1000000L * (i + 1)));
+        }
+        ResultCache.prune(dir, 2);
+        assertFalse(new File(dir, "r0").exists());
+        assertFalse(new File(dir, "r2").exists());
+        assertTrue(new File(dir, "r3").exists());
+        assertTrue(new File(dir, "r4").exists());
+    }
+}
@@ -0,0 +1,56 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class ResultSpillTest {
+
+    @Test
+    public void readsBackAppendedRows() throws IOException {
+        File dir = Files.createTempDirectory("spill").toFile();
+        ResultSpill spill = ResultSpill.create(dir);
+        try {
+            int count = 5000;
+            for (int i = 0; i < count; i++) {
+                int[] ranges = i % 3 == 0 ? new int[]{0, 1, i % 5, i % 5 + 2} : null;
+                spill.append(i % 7, i * 2, i % 4, i, Integer.toString(i).getBytes(StandardCharsets.UTF_8), ranges);
+            }
+            assertEquals(count, spill.size());
+
+            ResultSpill.Rows rows = new ResultSpill.Rows(1000);
+            for (int from = 0; from < count; from += 1000) {
+                spill.read(from, 1000, rows, 0);
+                for (int i = 0; i < 1000; i++) {
+                    int row = from + i;
+                    assertEquals(row % 7, rows.files[i]);
+                    assertEquals(row * 2, rows.lines[i]);
+                    assertEquals(row % 4, rows.errors[i]);
+                    assertEquals(row, rows.offsets[i]);
+                    assertEquals(Integer.toString(row), new String(rows.texts[i], StandardCharsets.UTF_8));
+                    if (row % 3 == 0) {
+                        assertArrayEquals(new int[]{0, 1, row % 5, row % 5 + 2}, rows.ranges[i]);
+                    } else {
+                        assertNull(rows.ranges[i]);
+                    }
+                }
+            }
+
+            // Rows appended after a read are readable too
+            spill.append(1, 1, 0, 0, "late".getBytes(StandardCharsets.UTF_8), null);
+            spill.read(count, 1, rows, 3);
+            assertEquals("late", new String(rows.texts[3], StandardCharsets.UTF_8));
+        } finally {
+            spill.close();
+            assertEquals(0, dir.list().length);
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class ResultStoreTest {
+
+    private static void add(ResultStore store, int file, int line, String text) {
+        ResultStore.Batch batch = new ResultStore.Batch(file);
+        batch.add(line, text, 0, 0, null);
+        store.add(batch);
+    }
+
+    private static String[] texts(ResultStore.Snapshot snapshot) {
+        String[] texts = new String[snapshot.size()];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = snapshot.get(i).mText.toString();
+        }
+        return texts;
+    }
+
+    @Test
+    public void storesMatchesCompactly() {
+        ResultStore store = new ResultStore();
+        ResultStore.Batch batch = new ResultStore.Batch(store.addFile(null, "dir/a.txt"));
+        for (int i = 0; i < 1000; i++) {
+            batch.add(i + 1, "line " + i + " 日本語", i % 3, i, new int[]{0, 4});
+        }
+        store.add(batch);
+        assertEquals(1000, store.size());
+        GrepView.Data data = store.snapshot().get(500);
+        assertEquals("dir/a.txt", data.mDisplayName);
+        assertEquals(501, data.mLinenumber);
+        assertEquals("line 500 日本語", data.mText.toString());
+        assertEquals(2, data.mErrors);
+        assertEquals(500, data.mOffset);
+        assertArrayEquals(new int[]{0, 4}, data.mRanges);
+        // One record per document
+        assertSame(data.mDisplayName, store.getRow(0).mDisplayName);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsPositionsPastTheEnd() {
+        new ResultStore().snapshot().get(0);
+    }
+
+    @Test
+    public void keepsMatchesInOrderAsTheyArrive() {
+        ResultStore store = new ResultStore();
+        int b = store.addFile(null, "b");
+        int a = store.addFile(null, "A");
+        int a2 = store.addFile(null, "a");
+        int none = store.addFile(null, null);
+        add(store, b, 1, "b1");
+        add(store, a2, 2, "a2");
+        assertArrayEquals(new String[]{"a2", "b1"}, texts(store.snapshot()));
+        add(store, a, 2, "A2");
+        add(store, b, 3, "b3");
+        add(store, a, 10, "A10");
+        add(store, none, 7, "none");
+
+        // Names equal ignoring case follow each other in the order they were added
+        assertArrayEquals(new String[]{"none", "A2", "A10", "a2", "b1", "b3"}, texts(store.snapshot()));
+    }
+
+    @Test
+    public void reportsWhereMatchesWereAdded() {
+        ResultStore store = new ResultStore();
+        int a = store.addFile(null, "a");
+        int b = store.addFile(null, "b");
+        int c = store.addFile(null, "c");
+        int d = store.addFile(null, "d");
+        add(store, b, 1, "b1");
+        add(store, d, 1, "d1");
+        ResultStore.Snapshot older = store.snapshot();
+        assertSame(older, store.snapshot());
+
+        ResultStore.Batch batch = new ResultStore.Batch(a);
+        batch.add(1, "a1", 0, 0, null);
+        batch.add(2, "a2", 0, 0, null);
+        store.add(batch);
+        add(store, c, 1, "c1");
+        add(store, d, 2, "d2");
+        add(store, b, 2, "b2");
+        ResultStore.Snapshot newer = store.snapshot();
+        assertArrayEquals(new String[]{"a1", "a2", "b1", "b2", "c1", "d1", "d2"}, texts(newer));
+
+        List<String> ranges = new ArrayList<>();
+        newer.forEachAdded(older, (start, count) -> ranges.add(start + "+" + count));
+        // Adjacent ranges are merged
+        assertEquals(Arrays.asList("0+2", "3+2", "6+1"), ranges);
+        // The older snapshot is unchanged
+        assertArrayEquals(new String[]{"b1", "d1"}, texts(older));
+    }
+
+    @Test
+    public void idsStayWithTheirMatches() {
+        ResultStore store = new ResultStore();
+        int b = store.addFile(null, "b");
+        int a = store.addFile(null, "a");
+        add(store, b, 1, "b1");
+        long idB = store.snapshot().get(0).mId;
+        add(store, a, 1, "a1");
+        ResultStore.Snapshot snapshot = store.snapshot();
+        assertEquals(idB, snapshot.get(1).mId);
+        long idA = snapshot.get(0).mId;
+        assertFalse(idA == idB);
+        assertEquals(idA, snapshot.rowAt(0));
+        assertEquals("a1", store.getRow((int) idA).mText.toString());
+    }
+
+    @Test
+    public void handsOutMatchesInSteps() {
+        ResultStore store = new ResultStore();
+        int file = store.addFile(null, "a");
+        for (int i = 0; i < 10; i++) {
+            ResultStore.Batch batch = new ResultStore.Batch(file);
+            for (int j = 0; j < 3; j++) {
+                batch.add(i * 3 + j, "x", 0, 0, null);
+            }
+            store.add(batch);
+        }
+        ResultStore.Snapshot first = store.next(null, 7);
+        assertEquals(6, first.size());
+        ResultStore.Snapshot second = store.next(first, 7);
+        assertEquals(12, second.size());
+        // A segment larger than the step is still handed out whole
+        assertEquals(15, store.next(second, 1).size());
+        assertEquals(30, store.next(second, 100).size());
+        assertSame(store.snapshot(), store.next(store.snapshot(), 100));
+    }
+
+    @Test
+    public void stepsMatchAFullSnapshot() {
+        ResultStore store = new ResultStore();
+        ResultStore expected = new ResultStore();
+        Random random = new Random(42);
+        int[] lines = new int[20];
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(store.addFile(null, "f" + i), expected.addFile(null, "f" + i));
+        }
+        ResultStore.Snapshot shown = null;
+        for (int step = 0; step < 50; step++) {
+            for (int i = random.nextInt(8); i > 0; i--) {
+                int file = random.nextInt(lines.length);
+                String text = "f" + file + ":" + ++lines[file];
+                add(store, file, lines[file], text);
+                add(expected, file, lines[file], text);
+            }
+            ResultStore.Snapshot newer = store.next(shown, 5);
+            if (shown != null) {
+                List<String> added = new ArrayList<>();
+                newer.forEachAdded(shown, (start, count) -> {
+                    for (int i = start; i < start + count; i++) {
+                        added.add(newer.get(i).mText.toString());
+                    }
+                });
+                List<String> all = new ArrayList<>(Arrays.asList(texts(newer)));
+                all.removeAll(Arrays.asList(texts(shown)));
+                assertEquals(all, added);
+            }
+            shown = newer;
+        }
+        shown = store.next(shown, Integer.MAX_VALUE);
+        assertArrayEquals(texts(expected.snapshot()), texts(shown));
+    }
+
+    @Test
+    public void waitsOnlyForAWatchingConsumer() throws InterruptedException {
+        ResultStore store = new ResultStore();
+        ResultStore.Batch batch = new ResultStore.Batch(store.addFile(null, "a"));
+        for (int i = 0; i <= ResultStore.MAX_UNSHOWN; i++) {
+            batch.add(i, "x", 0, 0, null);
+        }
+        store.add(batch);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        // Nobody is watching
+        store.awaitDemand(cancelled);
+
+        store.setThrottled(true);
+        AtomicBoolean returned = new AtomicBoolean();
+        Thread worker = new Thread(() -> {
+            store.awaitDemand(cancelled);
+            returned.set(true);
+        });
+        worker.start();
+        worker.join(200);
+        assertFalse(returned.get());
+        store.next(null, 1);
+        worker.join(5000);
+        assertTrue(returned.get());
+    }
+
+    private static File tempDir() throws IOException {
+        return Files.createTempDirectory("spill").toFile();
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void spillsPastTheBudget() throws IOException {
+        File dir = tempDir();
+        try (ResultStore store = new ResultStore(dir, 4096)) {
+            int file = store.addFile(null, "big.log");
+            for (int i = 0; i < 500; i++) {
+                add(store, file, i + 1, "match " + i);
+                if (i == 10) {
+                    assertFalse(store.isSpilled());
+                }
+            }
+            assertTrue(store.isSpilled());
+            assertEquals(500, store.size());
+
+            GrepView.Data[] page = new GrepView.Data[64];
+            assertEquals(64, store.readRows(0, page));
+            assertEquals("match 0", page[0].mText.toString());
+            assertEquals("match 63", page[63].mText.toString());
+            assertEquals(20, store.readRows(480, page));
+            assertEquals(500, page[19].mLinenumber);
+            assertEquals("big.log", page[19].mDisplayName);
+
+            // Later matches go straight to disk and are readable at once
+            ResultStore.Batch late = new ResultStore.Batch(file);
+            late.add(501, "late", 1, 2, new int[]{1, 3});
+            store.add(late);
+            GrepView.Data data = store.snapshot().get(500);
+            assertEquals("late", data.mText.toString());
+            assertEquals(1, data.mErrors);
+            assertArrayEquals(new int[]{1, 3}, data.mRanges);
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void ordersSpilledMatches() throws IOException {
+        File dir = tempDir();
+        try (ResultStore store = new ResultStore(dir, 1024)) {
+            int b = store.addFile(null, "b");
+            int a = store.addFile(null, "a");
+            for (int i = 1; i <= 200; i++) {
+                add(store, i % 2 == 0 ? b : a, i, (i % 2 == 0 ? "b" : "a") + i);
+            }
+            assertTrue(store.isSpilled());
+            ResultStore.Snapshot snapshot = store.snapshot();
+            assertEquals(200, snapshot.size());
+            assertEquals("a1", snapshot.get(0).mText.toString());
+            assertEquals("a199", snapshot.get(99).mText.toString());
+            assertEquals("b2", snapshot.get(100).mText.toString());
+            assertEquals("b200", snapshot.get(199).mText.toString());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    @Test
+    public void heapStaysFlatOnceSpilled() throws IOException, InterruptedException {
+        File dir = tempDir();
+        try (ResultStore store = new ResultStore(dir, 1024 * 1024)) {
+            String text = "a line of about sixty characters that matched the query ...";
+            ResultStore.Batch batch = new ResultStore.Batch(store.addFile(null, "big.log"));
+            for (int i = 0; i < 100000; i++) {
+                batch.add(i, text, 0, 0, new int[]{2, 6});
+                if (batch.size() == 1024) {
+                    store.add(batch);
+                    batch.clear();
+                }
+            }
+            store.add(batch);
+            batch.clear();
+            long before = usedHeap();
+
+            int rows = 1000000;
+            for (int i = 0; i < rows; i++) {
+                batch.add(i, text, 0, 0, new int[]{2, 6});
+                if (batch.size() == 1024) {
+                    store.add(batch);
+                    batch.clear();
+                }
+            }
+            store.add(batch);
+            long grown = usedHeap() - before;
+
+            assertTrue(store.isSpilled());
+            assertEquals(1100000, store.size());
+            // In memory, these rows would take over 100 MB
+            assertTrue("heap grew by " + grown, grown < 8 * 1024 * 1024);
+            assertEquals(text, store.snapshot().get(1099999).mText.toString());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void closeDeletesTheSpill() throws IOException {
+        File dir = tempDir();
+        try {
+            ResultStore store = new ResultStore(dir, 100);
+            int file = store.addFile(null, "x");
+            for (int i = 0; i < 50; i++) {
+                add(store, file, i, "text");
+            }
+            assertTrue(dir.list().length > 0);
+            store.close();
+            assertEquals(0, dir.list().length);
+            assertEquals(0, store.size());
+            add(store, file, 1, "ignored");
+            assertEquals(0, store.size());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+}
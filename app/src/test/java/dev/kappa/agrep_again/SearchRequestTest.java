@@ -0,0 +1,33 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SearchRequestTest {
+
+    @Test
+    public void lineLocalPatterns() {
+        assertTrue(SearchRequest.isLineLocal("foo\\d+bar"));
+        assertTrue(SearchRequest.isLineLocal("^(?:a|b)$"));
+        assertTrue(SearchRequest.isLineLocal("(?<word>\\w+) \\k<word>"));
+        assertTrue(SearchRequest.isLineLocal("a+?b*?"));
+        assertTrue(SearchRequest.isLineLocal("\\\\A"));
+        assertTrue(SearchRequest.isLineLocal("\\++"));
+    }
+
+    @Test
+    public void patternsThatLookPastTheLine() {
+        assertFalse(SearchRequest.isLineLocal("\\Afoo"));
+        assertFalse(SearchRequest.isLineLocal("foo\\z"));
+        assertFalse(SearchRequest.isLineLocal("foo\\Z"));
+        assertFalse(SearchRequest.isLineLocal("\\Gfoo"));
+        assertFalse(SearchRequest.isLineLocal("foo(?=bar)"));
+        assertFalse(SearchRequest.isLineLocal("(?<!x)foo"));
+        assertFalse(SearchRequest.isLineLocal("(?-m)foo$"));
+        assertFalse(SearchRequest.isLineLocal("(?>[^x]*)\\b"));
+        assertFalse(SearchRequest.isLineLocal("[^x]*+\\b"));
+        assertFalse(SearchRequest.isLineLocal("a{2}+"));
+    }
+}
@@ -0,0 +1,167 @@
+package dev.kappa.agrep_again;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrigramIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void add(TrigramIndex.Writer writer, TrigramIndex.Collector collector,
+                            String id, String... lines) throws IOException {
+        collector.clear();
+        for (String line : lines) {
+            collector.addLine(line);
+        }
+        writer.addDocument(id, 100, 1000, collector);
+    }
+
+    private static List<List<String>> plain(String query) {
+        return QueryLiterals.extract(query, false, 3);
+    }
+
+    private TrigramIndex buildSample(File target) throws IOException {
+        TrigramIndex.Writer writer = new TrigramIndex.Writer(folder.newFolder("work"), null);
+        TrigramIndex.Collector collector = new TrigramIndex.Collector();
+        add(writer, collector, "doc:a", "The quick brown fox", "jumps over");
+        add(writer, collector, "doc:b", "lorem ipsum dolor");
+        add(writer, collector, "doc:c", "QUICK thinking", "sit amet");
+        assertTrue(writer.hasChanges());
+        writer.commit(target);
+        return TrigramIndex.open(target);
+    }
+
+    @Test
+    public void open_missingFileReturnsNull() {
+        assertNull(TrigramIndex.open(new File(folder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void roundTrip_preservesDocumentTable() throws IOException {
+        TrigramIndex index = buildSample(new File(folder.getRoot(), "index"));
+        assertNotNull(index);
+        try {
+            assertEquals(3, index.documentCount());
+            assertEquals(1, index.ordinalOf("doc:b"));
+            assertEquals(-1, index.ordinalOf("doc:z"));
+            assertTrue(index.isFresh(0, 100, 1000));
+            assertFalse(index.isFresh(0, 101, 1000));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void candidates_areCaseFolded() throws IOException {
+        TrigramIndex index = buildSample(new File(folder.getRoot(), "index"));
+        try {
+            BitSet quick = index.candidates(plain("Quick"));
+            assertTrue(quick.get(0));
+            assertFalse(quick.get(1));
+            assertTrue(quick.get(2));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void candidates_doNotSpanLines() throws IOException {
+        TrigramIndex index = buildSample(new File(folder.getRoot(), "index"));
+        try {
+            // "fox" ends one line and "jumps" starts the next
+            assertFalse(index.candidates(plain("foxjumps")).get(0));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void candidates_alternativesAreUnited() throws IOException {
+        TrigramIndex index = buildSample(new File(folder.getRoot(), "index"));
+        try {
+            BitSet result = index.candidates(plain("ipsum amet"));
+            assertFalse(result.get(0));
+            assertTrue(result.get(1));
+            assertTrue(result.get(2));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void candidates_nullLiteralsMeanEverything() throws IOException {
+        TrigramIndex index = buildSample(new File(folder.getRoot(), "index"));
+        try {
+            assertNull(index.candidates(null));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void writer_carriesOverUnchangedDocuments() throws IOException {
+        File target = new File(folder.getRoot(), "index");
+        TrigramIndex previous = buildSample(target);
+        TrigramIndex.Writer writer = new TrigramIndex.Writer(folder.newFolder("work2"), previous);
+        TrigramIndex.Collector collector = new TrigramIndex.Collector();
+        writer.carryOver(previous.ordinalOf("doc:c"));
+        add(writer, collector, "doc:d", "brand new text");
+        writer.carryOver(previous.ordinalOf("doc:a"));
+        assertTrue(writer.hasChanges());
+        writer.commit(target);
+        previous.close();
+
+        TrigramIndex index = TrigramIndex.open(target);
+        try {
+            assertEquals(3, index.documentCount());
+            assertEquals(-1, index.ordinalOf("doc:b"));
+            BitSet quick = index.candidates(plain("quick"));
+            assertTrue(quick.get(index.ordinalOf("doc:a")));
+            assertTrue(quick.get(index.ordinalOf("doc:c")));
+            assertFalse(quick.get(index.ordinalOf("doc:d")));
+            assertTrue(index.candidates(plain("brand")).get(index.ordinalOf("doc:d")));
+            assertFalse(index.candidates(plain("lorem")).get(0));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void writer_withoutChangesReportsNone() throws IOException {
+        File target = new File(folder.getRoot(), "index");
+        TrigramIndex previous = buildSample(target);
+        TrigramIndex.Writer writer = new TrigramIndex.Writer(folder.newFolder("work2"), previous);
+        for (int i = 0; i < previous.documentCount(); i++) {
+            writer.carryOver(i);
+        }
+        assertFalse(writer.hasChanges());
+        writer.abort();
+        previous.close();
+    }
+
+    @Test
+    public void addLinesMatchesAddLine() {
+        String text = "first line\r\nab\rsecond\n\nthird";
+        TrigramIndex.Collector byLine = new TrigramIndex.Collector();
+        for (String line : text.split("\r\n|\r|\n")) {
+            byLine.addLine(line);
+        }
+        TrigramIndex.Collector byBlock = new TrigramIndex.Collector();
+        byBlock.addLines(text, 0, text.length());
+        assertArrayEquals(byLine.buckets(), byBlock.buckets());
+    }
+}